@@ -19,10 +19,15 @@ package org.apache.velocity;
  * under the License.
  */
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayReader;
+import java.io.CharArrayWriter;
+import java.io.FilterReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.util.List;
@@ -38,9 +43,14 @@ import org.apache.velocity.runtime.RuntimeConstants;
 import org.apache.velocity.runtime.directive.Scope;
 import org.apache.velocity.runtime.directive.StopCommand;
 import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.runtime.parser.Token;
+import org.apache.velocity.runtime.parser.node.ASTText;
+import org.apache.velocity.runtime.parser.node.Node;
 import org.apache.velocity.runtime.parser.node.SimpleNode;
+import org.apache.velocity.runtime.parser.node.TreeOptimizer;
 import org.apache.velocity.runtime.resource.Resource;
 import org.apache.velocity.runtime.resource.ResourceManager;
+import org.apache.velocity.runtime.resource.TemplateSnapshotCache;
 
 /**
  * This class is used for controlling all template
@@ -75,6 +85,24 @@ public class Template extends Resource
 
     private VelocityException errorCondition = null;
 
+    private TemplateSnapshotCache snapshotCache = null;
+
+    private long parseTime = 0;
+
+    private Template previous = null;
+
+    /*
+     * FNV-1a parameters for the content hash
+     */
+    private static final long HASH_BASIS = 0xcbf29ce484222325L;
+    private static final long HASH_PRIME = 0x100000001b3L;
+
+    /*
+     * Bytes counted for each AST node by estimateSize(): the node itself,
+     * its children array and its first and last Token objects.
+     */
+    private static final long NODE_SIZE_ESTIMATE = 160;
+
     /** Default constructor */
     public Template()
     {
@@ -98,14 +126,24 @@ public class Template extends Resource
     {
         data = null;
         InputStream is = null;
+        Reader reader = null;
         errorCondition = null;
 
         /*
-         *  first, try to get the stream from the loader
+         *  first, try to get the stream from the loader - or,
+         *  unless we need the raw bytes to look up a snapshot,
+         *  the characters, which some loaders can decode in place
          */
         try
         {
-            is = resourceLoader.getResourceStream(name);
+            if (snapshotCache != null)
+            {
+                is = resourceLoader.getResourceStream(name);
+            }
+            else
+            {
+                reader = resourceLoader.getResourceReader(name, encoding);
+            }
         }
         catch( ResourceNotFoundException rnfe )
         {
@@ -116,13 +154,18 @@ public class Template extends Resource
             errorCondition = rnfe;
             throw rnfe;
         }
+        catch( UnsupportedEncodingException  uce )
+        {
+            errorCondition = unsupportedEncoding();
+            throw errorCondition;
+        }
 
         /*
          *  if that worked, lets protect in case a loader impl
          *  forgets to throw a proper exception
          */
 
-        if (is != null)
+        if (is != null || reader != null)
         {
             /*
              *  now parse the template
@@ -130,17 +173,39 @@ public class Template extends Resource
 
             try
             {
-                BufferedReader br = new BufferedReader( new InputStreamReader( is, encoding ) );
-                data = rsvc.parse( br, name);
+                long start = System.nanoTime();
+                if (is != null)
+                {
+                    data = parseWithSnapshot(is);
+                }
+                else
+                {
+                    data = parseWithHash(reader);
+                }
+
+                if (previous != null && data == previous.getData())
+                {
+                    /*
+                     *  same content as before, the tree is ready
+                     */
+                    parseTime = 0;
+                    estimatedSize = previous.getEstimatedSize();
+                    return true;
+                }
                 initDocument();
+                parseTime = System.nanoTime() - start;
+                estimatedSize = estimateSize((Node) data);
                 return true;
             }
             catch( UnsupportedEncodingException  uce )
             {
-                String msg = "Template.process : Unsupported input encoding : " + encoding
-                + " for template " + name;
-
-                errorCondition  = new ParseErrorException( msg );
+                errorCondition = unsupportedEncoding();
+                throw errorCondition;
+            }
+            catch( IOException ioe )
+            {
+                errorCondition = new VelocityException("Exception thrown reading Template "
+                    +getName(), ioe);
                 throw errorCondition;
             }
             catch ( ParseException pex )
@@ -167,12 +232,21 @@ public class Template extends Resource
             }
             finally
             {
+                previous = null;
+
                 /*
                  *  Make sure to close the inputstream when we are done.
                  */
                 try
                 {
-                    is.close();
+                    if (is != null)
+                    {
+                        is.close();
+                    }
+                    else
+                    {
+                        reader.close();
+                    }
                 }
                 catch(IOException e)
                 {
@@ -195,6 +269,246 @@ public class Template extends Resource
         }
     }
 
+    private ParseErrorException unsupportedEncoding()
+    {
+        String msg = "Template.process : Unsupported input encoding : " + encoding
+        + " for template " + name;
+
+        return new ParseErrorException( msg );
+    }
+
+    /**
+     *  Sets the on-disk cache of parsed templates to use when
+     *  processing this template, or null for none.
+     *
+     * @param snapshotCache the cache
+     * @since 1.8
+     */
+    public void setSnapshotCache(TemplateSnapshotCache snapshotCache)
+    {
+        this.snapshotCache = snapshotCache;
+    }
+
+    /**
+     *  Sets the template this one is about to replace. If process()
+     *  then reads the same content as that one was processed from, it
+     *  takes over its tree instead of parsing the content again; so
+     *  getData() returns the very same object. Only used by the next
+     *  process().
+     *
+     * @param previous the template being reloaded, or null
+     * @since 1.8
+     */
+    public void setPrevious(Template previous)
+    {
+        this.previous = previous;
+    }
+
+    /**
+     *  Returns how long the last successful process() took to read,
+     *  parse and initialize this template.
+     *
+     * @return the time in nanoseconds
+     * @since 1.8
+     */
+    public long getParseTime()
+    {
+        return parseTime;
+    }
+
+    /**
+     *  Reads the template source in full and restores the tree stored
+     *  for it, or parses it and stores the result if there is none.
+     */
+    private SimpleNode parseWithSnapshot(InputStream is)
+        throws IOException, ParseException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = is.read(buffer)) != -1)
+        {
+            bytes.write(buffer, 0, n);
+        }
+        byte[] source = bytes.toByteArray();
+
+        /*
+         *  the same bytes read with another encoding are other
+         *  characters, so the encoding is hashed along with them
+         */
+        char[] charset = String.valueOf(encoding).toCharArray();
+        contentHash = hash(hash(HASH_BASIS, charset, 0, charset.length), source);
+        if (isUnchanged())
+        {
+            return (SimpleNode) previous.getData();
+        }
+
+        byte[] hash = snapshotCache.hash(source);
+
+        SimpleNode restored = snapshotCache.load(this, hash);
+        if (restored != null)
+        {
+            /*
+             *  the same as parsing would do before the tree is init()-ed
+             */
+            rsvc.dumpVMNamespace(name);
+            return restored;
+        }
+
+        Reader reader = new InputStreamReader(new ByteArrayInputStream(source), encoding);
+        SimpleNode parsed = rsvc.parse(reader, name);
+        snapshotCache.store(this, hash, parsed);
+        return parsed;
+    }
+
+    /**
+     *  Parses the template source, hashing it on the way. When reloading,
+     *  the source is read in full first, so that it need not be parsed
+     *  at all if it did not change.
+     */
+    private SimpleNode parseWithHash(Reader reader)
+        throws IOException, ParseException
+    {
+        if (previous == null)
+        {
+            HashingReader hashing = new HashingReader(reader);
+            SimpleNode parsed = rsvc.parse(hashing, name);
+            contentHash = hashing.hash;
+            return parsed;
+        }
+
+        CharArrayWriter chars = new CharArrayWriter();
+        char[] buffer = new char[8192];
+        int n;
+        while ((n = reader.read(buffer)) != -1)
+        {
+            chars.write(buffer, 0, n);
+        }
+        char[] source = chars.toCharArray();
+
+        contentHash = hash(HASH_BASIS, source, 0, source.length);
+        if (isUnchanged())
+        {
+            return (SimpleNode) previous.getData();
+        }
+        return rsvc.parse(new CharArrayReader(source), name);
+    }
+
+    /**
+     *  Whether the source just read is the one the template being
+     *  reloaded was processed from.
+     */
+    private boolean isUnchanged()
+    {
+        return previous != null && previous.getData() != null &&
+               previous.getContentHash() == contentHash;
+    }
+
+    private static long hash(long h, byte[] bytes)
+    {
+        for (int i = 0; i < bytes.length; i++)
+        {
+            h = (h ^ (bytes[i] & 0xff)) * HASH_PRIME;
+        }
+        return h;
+    }
+
+    private static long hash(long h, char[] chars, int off, int len)
+    {
+        for (int i = off; i < off + len; i++)
+        {
+            h = (h ^ chars[i]) * HASH_PRIME;
+        }
+        return h;
+    }
+
+    /**
+     *  Hashes the characters as the parser reads them.
+     */
+    private static class HashingReader extends FilterReader
+    {
+        long hash = HASH_BASIS;
+
+        HashingReader(Reader in)
+        {
+            super(in);
+        }
+
+        public int read() throws IOException
+        {
+            int c = in.read();
+            if (c != -1)
+            {
+                hash = (hash ^ c) * HASH_PRIME;
+            }
+            return c;
+        }
+
+        public int read(char[] cbuf, int off, int len) throws IOException
+        {
+            int n = in.read(cbuf, off, len);
+            if (n > 0)
+            {
+                hash = hash(hash, cbuf, off, n);
+            }
+            return n;
+        }
+
+        public long skip(long n) throws IOException
+        {
+            char[] skipped = new char[(int) Math.min(n, 8192)];
+            long total = 0;
+            while (total < n)
+            {
+                int r = read(skipped, 0, (int) Math.min(skipped.length, n - total));
+                if (r == -1)
+                {
+                    break;
+                }
+                total += r;
+            }
+            return total;
+        }
+
+        public boolean markSupported()
+        {
+            return false;
+        }
+
+        public void mark(int readAheadLimit) throws IOException
+        {
+            throw new IOException("mark() is not supported");
+        }
+    }
+
+    /**
+     *  Estimates the memory retained by an AST: a fixed amount per node
+     *  for the node and its tokens, plus the static text, which is held
+     *  both in its token and in the char[] it is rendered from.
+     *
+     * @param node root of the tree
+     * @return estimated size in bytes
+     */
+    private static long estimateSize(Node node)
+    {
+        long size = NODE_SIZE_ESTIMATE;
+
+        if (node instanceof ASTText)
+        {
+            Token t = node.getFirstToken();
+            if (t != null && t.image != null)
+            {
+                size += 4L * t.image.length();
+            }
+        }
+
+        for (int i = 0, k = node.jjtGetNumChildren(); i < k; i++)
+        {
+            size += estimateSize(node.jjtGetChild(i));
+        }
+        return size;
+    }
+
     /**
      *  initializes the document.  init() is not longer
      *  dependant upon context, but we need to let the
@@ -226,6 +540,11 @@ public class Template extends Resource
 
             ((SimpleNode)data).init( ica, rsvc);
 
+            if (rsvc.getBoolean(RuntimeConstants.OPTIMIZE_TEMPLATES, false))
+            {
+                new TreeOptimizer(rsvc).optimize((Node) data, name);
+            }
+
             String property = scopeName+'.'+RuntimeConstants.PROVIDE_SCOPE_CONTROL;
             provideScope = rsvc.getBoolean(property, provideScope);
         }
@@ -181,6 +181,36 @@ public class Velocity implements RuntimeConstants
             .evaluate(context, out, logTag, instring);
     }
 
+    /**
+     *  Renders the input string using the context into the output writer.
+     *  If the parsed trees of evaluated strings are cached (see
+     *  <code>evaluate.cache.size</code>), the tree of this one is cached
+     *  under the given key rather than under the string itself; the key
+     *  must then change whenever the string does.
+     *
+     *  @param context context to use in rendering input string
+     *  @param out  Writer in which to render the output
+     *  @param logTag  string to be used as the template name for log
+     *                 messages in case of error
+     *  @param instring input string containing the VTL to be rendered
+     *  @param cacheKey key of the string, or null to use the string itself
+     *
+     *  @return true if successful, false otherwise.  If false, see
+     *             Velocity runtime log
+     * @throws ParseErrorException The template could not be parsed.
+     * @throws MethodInvocationException A method on a context object could not be invoked.
+     * @throws ResourceNotFoundException A referenced resource could not be loaded.
+     * @since 1.8
+     */
+    public static boolean evaluate( Context context, Writer out,
+                                    String logTag, String instring, Object cacheKey )
+        throws ParseErrorException, MethodInvocationException,
+            ResourceNotFoundException
+    {
+        return RuntimeSingleton.getRuntimeServices()
+            .evaluate(context, out, logTag, instring, cacheKey);
+    }
+
     /**
      *  Renders the input stream using the context into the output writer.
      *  To be used when a template is dynamically constructed, or want to
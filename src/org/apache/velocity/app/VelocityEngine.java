@@ -26,6 +26,7 @@ import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.util.Collection;
 import java.util.Properties;
 
 import org.apache.commons.collections.ExtendedProperties;
@@ -37,6 +38,7 @@ import org.apache.velocity.exception.ResourceNotFoundException;
 import org.apache.velocity.runtime.RuntimeConstants;
 import org.apache.velocity.runtime.RuntimeInstance;
 import org.apache.velocity.runtime.log.Log;
+import org.apache.velocity.runtime.resource.PrecompileReport;
 
 /**
  * <p>
@@ -116,6 +118,17 @@ public class VelocityEngine implements RuntimeConstants
         ri.init(p);
     }
 
+    /**
+     *  Releases the JMX registrations and background threads of this
+     *  engine, which must not be used afterwards.
+     *  @see RuntimeInstance#shutdown()
+     *  @since 1.8
+     */
+    public void shutdown()
+    {
+        ri.shutdown();
+    }
+
     /**
      * Set a Velocity Runtime property.
      *
@@ -199,6 +212,35 @@ public class VelocityEngine implements RuntimeConstants
         return ri.evaluate(context, out, logTag, instring);
     }
 
+    /**
+     *  Renders the input string using the context into the output writer.
+     *  If the parsed trees of evaluated strings are cached (see
+     *  <code>evaluate.cache.size</code>), the tree of this one is cached
+     *  under the given key rather than under the string itself; the key
+     *  must then change whenever the string does.
+     *
+     *  @param context context to use in rendering input string
+     *  @param out  Writer in which to render the output
+     *  @param logTag  string to be used as the template name for log
+     *                 messages in case of error
+     *  @param instring input string containing the VTL to be rendered
+     *  @param cacheKey key of the string, or null to use the string itself
+     *
+     *  @return true if successful, false otherwise.  If false, see
+     *             Velocity runtime log
+     * @throws ParseErrorException The template could not be parsed.
+     * @throws MethodInvocationException A method on a context object could not be invoked.
+     * @throws ResourceNotFoundException A referenced resource could not be loaded.
+     * @since 1.8
+     */
+    public boolean evaluate(Context context, Writer out,
+                            String logTag, String instring, Object cacheKey)
+        throws ParseErrorException, MethodInvocationException,
+            ResourceNotFoundException
+    {
+        return ri.evaluate(context, out, logTag, instring, cacheKey);
+    }
+
     /**
      *  Renders the input stream using the context into the output writer.
      *  To be used when a template is dynamically constructed, or want to
@@ -392,6 +434,36 @@ public class VelocityEngine implements RuntimeConstants
         return ri.getTemplate( name, encoding );
     }
 
+    /**
+     * Loads the given templates into the resource cache ahead of time,
+     * in parallel.
+     *
+     * @param templateNames names of the templates to load
+     * @param parallelism number of threads to load with, or 0 for one per processor
+     * @return load time of each template, and the failures
+     * @see RuntimeInstance#precompileTemplates(Collection, int)
+     * @since 1.8
+     */
+    public PrecompileReport precompileTemplates(Collection templateNames, int parallelism)
+    {
+        return ri.precompileTemplates(templateNames, parallelism);
+    }
+
+    /**
+     * Loads every template the resource loaders can list into the resource
+     * cache ahead of time, in parallel.
+     *
+     * @param suffix only load the resources whose name ends with this, or null for all
+     * @param parallelism number of threads to load with, or 0 for one per processor
+     * @return load time of each template, and the failures
+     * @see RuntimeInstance#precompileTemplates(String, int)
+     * @since 1.8
+     */
+    public PrecompileReport precompileTemplates(String suffix, int parallelism)
+    {
+        return ri.precompileTemplates(suffix, parallelism);
+    }
+
     /**
      *   Determines if a resource is accessable via the currently
      *   configured resource loaders.
@@ -19,6 +19,7 @@ package org.apache.velocity.context;
  * under the License.    
  */
 
+import org.apache.commons.lang.text.StrBuilder;
 import org.apache.velocity.app.event.EventCartridge;
 import org.apache.velocity.runtime.resource.Resource;
 import org.apache.velocity.util.introspection.IntrospectionCacheData;
@@ -84,6 +85,36 @@ public final class InternalContextAdapterImpl implements InternalContextAdapter
      */
     InternalEventContext iec = null;
 
+    /**
+     *  arrays for the arguments of the method calls made during
+     *  this merge, by number of arguments.  A call made while the
+     *  arguments of another one are evaluated takes the next array,
+     *  so arrays are released in the reverse order they were taken.
+     */
+    private Object[][][] arguments = null;
+
+    /**
+     *  the number of arrays taken from arguments, by number of
+     *  arguments
+     */
+    private int[] argumentDepth = null;
+
+    /**
+     *  the largest number of arguments arrays are kept for
+     */
+    private static final int MAX_ARGUMENT_COUNT = 2;
+
+    /**
+     *  the buffer string literals of this merge are interpolated
+     *  into, null while it is in use
+     */
+    private StrBuilder buffer = null;
+
+    /**
+     *  a buffer grown larger than this is not kept for reuse
+     */
+    private static final int MAX_BUFFER_CAPACITY = 8192;
+
     /**
      *  CTOR takes a Context and wraps it, delegating all 'data' calls
      *  to it.
@@ -316,6 +347,101 @@ public final class InternalContextAdapterImpl implements InternalContextAdapter
         return this;
     }
 
+    /* -----  argument arrays ---- */
+
+    /**
+     *  Returns an array for the arguments of a method call.  It must
+     *  be given back to {@link #releaseArguments(Object[])} when the
+     *  call returns.
+     *
+     * @param count the number of arguments
+     * @return an array of that length, filled with nulls
+     * @since 1.8
+     */
+    public Object[] takeArguments(int count)
+    {
+        if (count > MAX_ARGUMENT_COUNT)
+        {
+            return new Object[count];
+        }
+        if (arguments == null)
+        {
+            arguments = new Object[MAX_ARGUMENT_COUNT + 1][4][];
+            argumentDepth = new int[MAX_ARGUMENT_COUNT + 1];
+        }
+
+        Object[][] free = arguments[count];
+        int d = argumentDepth[count]++;
+        if (d == free.length)
+        {
+            Object[][] grown = new Object[d * 2][];
+            System.arraycopy(free, 0, grown, 0, d);
+            arguments[count] = free = grown;
+        }
+
+        Object[] params = free[d];
+        if (params == null)
+        {
+            params = free[d] = new Object[count];
+        }
+        return params;
+    }
+
+    /**
+     *  Gives back an array returned by {@link #takeArguments(int)}.
+     *
+     * @param params the array
+     * @since 1.8
+     */
+    public void releaseArguments(Object[] params)
+    {
+        if (params.length > MAX_ARGUMENT_COUNT)
+        {
+            return;
+        }
+
+        // do not keep the arguments reachable
+        for (int i = 0; i < params.length; i++)
+        {
+            params[i] = null;
+        }
+        argumentDepth[params.length]--;
+    }
+
+    /**
+     *  Returns an empty buffer to render into.  It must be given back
+     *  to {@link #releaseBuffer(StrBuilder)} when no longer used; a
+     *  buffer taken while another one is in use is a new one.
+     *
+     * @return an empty buffer
+     * @since 1.8
+     */
+    public StrBuilder takeBuffer()
+    {
+        StrBuilder taken = buffer;
+        if (taken == null)
+        {
+            return new StrBuilder(256);
+        }
+        buffer = null;
+        return taken;
+    }
+
+    /**
+     *  Gives back a buffer returned by {@link #takeBuffer()}.
+     *
+     * @param used the buffer
+     * @since 1.8
+     */
+    public void releaseBuffer(StrBuilder used)
+    {
+        if (used.capacity() <= MAX_BUFFER_CAPACITY)
+        {
+            used.clear();
+            buffer = used;
+        }
+    }
+
     /* -----  InternalEventContext ---- */
 
     /**
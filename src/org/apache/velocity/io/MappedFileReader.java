@@ -0,0 +1,247 @@
+package org.apache.velocity.io;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+
+/**
+ * A Reader over a memory-mapped file, which decodes the mapped bytes
+ * straight into the array it is asked to fill. Wrapped around nothing
+ * else, it gives the parser the characters of a template without the
+ * intermediate byte and char buffers of an InputStreamReader and a
+ * BufferedReader.
+ *
+ * A Unicode byte order mark at the start of the file is skipped, and the
+ * encoding it denotes is used instead of the one asked for. Malformed
+ * input is replaced, as InputStreamReader does.
+ *
+ * This class is not thread safe.
+ *
+ * @since 1.8
+ */
+public class MappedFileReader
+    extends Reader
+{
+    /** Longest first, as the UTF-32LE mark starts with the UTF-16LE one. */
+    private static final UnicodeInputStream.UnicodeBOM[] BOMS =
+        new UnicodeInputStream.UnicodeBOM[] {
+            UnicodeInputStream.UTF32LE_BOM,
+            UnicodeInputStream.UTF32BE_BOM,
+            UnicodeInputStream.UTF8_BOM,
+            UnicodeInputStream.UTF16LE_BOM,
+            UnicodeInputStream.UTF16BE_BOM };
+
+    private ByteBuffer bytes;
+
+    private final CharsetDecoder decoder;
+
+    private final String encoding;
+
+    /** A character decoded but not yet returned, or -1. */
+    private int pending = -1;
+
+    /** Whether all the bytes have been decoded, and whether the decoder has been flushed. */
+    private boolean decoded = false;
+    private boolean flushed = false;
+
+    /**
+     * Maps the given file.
+     *
+     * @param file the file to read
+     * @param encoding the encoding of the file, unless it starts with a
+     *        byte order mark
+     * @throws UnsupportedEncodingException if the encoding is not supported
+     * @throws IOException if the file cannot be mapped
+     */
+    public MappedFileReader(File file, String encoding)
+        throws IOException
+    {
+        FileInputStream fis = new FileInputStream(file);
+        try
+        {
+            /*
+             *  the mapping stays valid once the channel is closed
+             */
+            FileChannel channel = fis.getChannel();
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally
+        {
+            fis.close();
+        }
+
+        String bomEncoding = skipBOM(bytes);
+        this.encoding = bomEncoding != null ? bomEncoding : encoding;
+
+        try
+        {
+            decoder = Charset.forName(this.encoding).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        catch (IllegalCharsetNameException icne)
+        {
+            throw new UnsupportedEncodingException(this.encoding);
+        }
+        catch (UnsupportedCharsetException uce)
+        {
+            throw new UnsupportedEncodingException(this.encoding);
+        }
+    }
+
+    /**
+     * Positions the buffer after the byte order mark it starts with, if
+     * any, and returns the encoding the mark denotes.
+     */
+    private static String skipBOM(ByteBuffer buffer)
+    {
+        for (int i = 0; i < BOMS.length; i++)
+        {
+            byte[] bom = BOMS[i].getBytes();
+            if (buffer.remaining() >= bom.length)
+            {
+                boolean match = true;
+                for (int j = 0; j < bom.length && match; j++)
+                {
+                    match = buffer.get(j) == bom[j];
+                }
+                if (match)
+                {
+                    buffer.position(bom.length);
+                    return BOMS[i].getEncoding();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the encoding the file is decoded with
+     */
+    public String getEncoding()
+    {
+        return encoding;
+    }
+
+    /**
+     * @see java.io.Reader#read(char[], int, int)
+     */
+    public int read(char[] cbuf, int off, int len)
+        throws IOException
+    {
+        if (bytes == null)
+        {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0)
+        {
+            return 0;
+        }
+
+        CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+        if (pending != -1)
+        {
+            out.put((char) pending);
+            pending = -1;
+        }
+
+        decode(out);
+
+        /*
+         *  a surrogate pair does not fit in a single char
+         */
+        if (out.position() == off && out.remaining() == 1 && !flushed)
+        {
+            CharBuffer pair = CharBuffer.allocate(2);
+            decode(pair);
+            pair.flip();
+            if (pair.hasRemaining())
+            {
+                out.put(pair.get());
+            }
+            if (pair.hasRemaining())
+            {
+                pending = pair.get();
+            }
+        }
+
+        int read = out.position() - off;
+        return read == 0 ? -1 : read;
+    }
+
+    private void decode(CharBuffer out)
+        throws IOException
+    {
+        if (flushed)
+        {
+            return;
+        }
+
+        if (!decoded)
+        {
+            CoderResult result = decoder.decode(bytes, out, true);
+            if (result.isError())
+            {
+                result.throwException();
+            }
+            if (result.isOverflow())
+            {
+                return;
+            }
+            decoded = true;
+        }
+
+        if (decoder.flush(out).isUnderflow())
+        {
+            flushed = true;
+        }
+    }
+
+    /**
+     * @see java.io.Reader#ready()
+     */
+    public boolean ready()
+    {
+        return bytes != null;
+    }
+
+    /**
+     * Drops the mapping, which is released once it is garbage collected.
+     *
+     * @see java.io.Reader#close()
+     */
+    public void close()
+    {
+        bytes = null;
+    }
+}
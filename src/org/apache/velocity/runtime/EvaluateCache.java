@@ -0,0 +1,189 @@
+package org.apache.velocity.runtime;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.collections.map.LRUMap;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
+import org.apache.velocity.runtime.parser.node.Node;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
+
+/**
+ * Keeps the parsed and initialized trees of strings rendered through
+ * {@link RuntimeInstance#evaluate} and the <code>#evaluate</code>
+ * directive, so that evaluating the same string again skips the parser.
+ * Trees are found by the template name they were parsed under and either
+ * the source string itself or a key supplied by the caller, and the least
+ * recently used ones are dropped once <code>evaluate.cache.size</code>
+ * trees are kept.
+ *
+ * <p>Strings defining macros are never cached, as their macros are
+ * registered while parsing.</p>
+ *
+ * @since 1.8
+ */
+public class EvaluateCache
+{
+    private final Map trees;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param size most trees to keep
+     */
+    public EvaluateCache(int size)
+    {
+        trees = Collections.synchronizedMap(new LRUMap(size));
+    }
+
+    /**
+     * Returns the tree cached for the given string.
+     *
+     * @param templateName name the string is evaluated under
+     * @param source the string
+     * @param key the key supplied by the caller, or null to find the tree
+     *        by the source
+     * @return the initialized tree, or null if none is cached
+     */
+    public SimpleNode get(String templateName, String source, Object key)
+    {
+        SimpleNode tree = (SimpleNode) trees.get(new Key(templateName, source, key));
+        if (tree != null)
+        {
+            hits.increment();
+        }
+        else
+        {
+            misses.increment();
+        }
+        return tree;
+    }
+
+    /**
+     * Caches the tree of the given string, unless it defines macros.
+     *
+     * @param templateName name the string is evaluated under
+     * @param source the string
+     * @param key the key supplied by the caller, or null to find the tree
+     *        by the source
+     * @param tree the tree, which must have been initialized already
+     */
+    public void put(String templateName, String source, Object key, SimpleNode tree)
+    {
+        if (!definesMacros(tree))
+        {
+            trees.put(new Key(templateName, source, key), tree);
+        }
+    }
+
+    /**
+     * Drops all cached trees.
+     */
+    public void clear()
+    {
+        trees.clear();
+    }
+
+    /**
+     * @return number of trees kept
+     */
+    public int getSize()
+    {
+        return trees.size();
+    }
+
+    /**
+     * @return number of lookups which found a tree
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of lookups which did not find a tree
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    private static boolean definesMacros(Node node)
+    {
+        if (node instanceof ASTDirective &&
+            "macro".equals(((ASTDirective) node).getDirectiveName()))
+        {
+            return true;
+        }
+        for (int i = 0; i < node.jjtGetNumChildren(); i++)
+        {
+            if (definesMacros(node.jjtGetChild(i)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A template name and either a source string or a key supplied by the
+     * caller, which are never taken for one another.
+     */
+    private static final class Key
+    {
+        private final String templateName;
+        private final Object key;
+        private final boolean supplied;
+
+        Key(String templateName, String source, Object key)
+        {
+            this.templateName = templateName;
+            this.supplied = key != null;
+            this.key = supplied ? key : source;
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key))
+            {
+                return false;
+            }
+            Key other = (Key) o;
+            return supplied == other.supplied &&
+                   key.equals(other.key) &&
+                   (templateName == null ? other.templateName == null
+                                         : templateName.equals(other.templateName));
+        }
+
+        public int hashCode()
+        {
+            int h = key.hashCode() * 31;
+            if (templateName != null)
+            {
+                h += templateName.hashCode();
+            }
+            return supplied ? ~h : h;
+        }
+    }
+}
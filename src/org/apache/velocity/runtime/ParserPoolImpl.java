@@ -19,22 +19,77 @@ package org.apache.velocity.runtime;
  * under the License.    
  */
 
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
 import org.apache.velocity.runtime.parser.Parser;
-import org.apache.velocity.util.SimplePool;
 import org.apache.velocity.runtime.parser.CharStream;
 
 /**
- * This wraps the original parser SimplePool class.  It also handles
- * instantiating ad-hoc parsers if none are available.
+ * Keeps the parsers for reuse, since they are expensive to create.  The
+ * pool starts with <code>parser.pool.initial</code> parsers and creates
+ * more as needed, up to <code>parser.pool.size</code>; parsers beyond the
+ * initial ones are dropped again once they have been idle for
+ * <code>parser.pool.idle.timeout</code> seconds.  When all of them are in
+ * use, get() waits up to <code>parser.pool.wait</code> milliseconds for
+ * one to be returned, and then gives up and returns null, upon which the
+ * caller creates a temporary parser.
+ *
+ * <p>Neither get() nor put() hold a monitor, so parsing threads, virtual
+ * ones included, only ever block while waiting for a parser.</p>
  *
  * @author <a href="mailto:sergek@lokitech.com">Serge Knystautas</a>
  * @version $Id: RuntimeInstance.java 384374 2006-03-08 23:19:30Z nbubna $
  * @since 1.5
  */
-public class ParserPoolImpl implements ParserPool {
+public class ParserPoolImpl implements ParserPool, ParserPoolImplMBean {
 
-    SimplePool pool = null;
+    RuntimeServices rsvc = null;
     int max = RuntimeConstants.NUMBER_OF_PARSERS;
+    int initial = RuntimeConstants.NUMBER_OF_PARSERS;
+    long idleTimeout = 0;
+    long wait = 0;
+
+    /** One permit per parser which may still be lent out. */
+    private Semaphore permits = null;
+
+    /** Idle parsers, the most recently returned first. */
+    private final ConcurrentLinkedDeque idle = new ConcurrentLinkedDeque();
+
+    /** Parsers owned by the pool, idle or lent out. */
+    private final AtomicInteger owned = new AtomicInteger();
+
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+
+    /** Name the pool is registered with JMX under, if it is. */
+    private ObjectName objectName = null;
+
+    /**
+     * A parser waiting in the pool, and since when.
+     */
+    private static final class IdleParser
+    {
+        final Parser parser;
+        final long since;
+
+        IdleParser(Parser parser, long since)
+        {
+            this.parser = parser;
+            this.since = since;
+        }
+    }
 
     /**
      * Create the underlying "pool".
@@ -42,37 +97,230 @@ public class ParserPoolImpl implements ParserPool {
      */
     public void initialize(RuntimeServices rsvc)
     {
-        max = rsvc.getInt(RuntimeConstants.PARSER_POOL_SIZE, RuntimeConstants.NUMBER_OF_PARSERS);
-        pool = new SimplePool(max);
+        this.rsvc = rsvc;
+        max = Math.max(rsvc.getInt(RuntimeConstants.PARSER_POOL_SIZE, RuntimeConstants.NUMBER_OF_PARSERS), 0);
+        initial = Math.min(rsvc.getInt(RuntimeConstants.PARSER_POOL_INITIAL, 4), max);
+        idleTimeout = 1000L * rsvc.getInt(RuntimeConstants.PARSER_POOL_IDLE_TIMEOUT, 60);
+        wait = rsvc.getInt(RuntimeConstants.PARSER_POOL_WAIT, 0);
+        permits = new Semaphore(max);
 
-        for (int i = 0; i < max; i++)
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < initial; i++)
         {
-            pool.put(rsvc.createNewParser());
+            idle.offerFirst(new IdleParser(newParser(), now));
         }
 
         if (rsvc.getLog().isDebugEnabled())
         {
-            rsvc.getLog().debug("Created '" + max + "' parsers.");
+            rsvc.getLog().debug("Created '" + initial + "' parsers, up to '" + max +
+                                "' will be pooled.");
+        }
+
+        if (rsvc.getBoolean(RuntimeConstants.PARSER_POOL_JMX_ENABLED, false))
+        {
+            try
+            {
+                ObjectName name = new ObjectName("org.apache.velocity:type=ParserPool,id=" +
+                    Integer.toHexString(System.identityHashCode(this)));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+                objectName = name;
+                rsvc.getLog().debug("ParserPool : statistics registered as " + name);
+            }
+            catch (Exception e)
+            {
+                rsvc.getLog().warn("ParserPool : unable to register statistics with JMX", e);
+            }
         }
     }
 
     /**
-     * Call the wrapped pool.  If none are available, it will create a new
-     * temporary one.
-     * @return A parser Object.
+     * Takes an idle parser, or creates one if there is none and the pool
+     * may still grow.  If all parsers are in use, waits for one as long as
+     * configured.
+     * @return A parser Object, or null if none became available.
      */
     public Parser get()
     {
-        return (Parser) pool.get();
+        borrows.increment();
+        if (!permits.tryAcquire() && !awaitPermit())
+        {
+            misses.increment();
+            return null;
+        }
+
+        IdleParser entry = (IdleParser) idle.pollFirst();
+        if (entry != null)
+        {
+            return entry.parser;
+        }
+
+        try
+        {
+            return newParser();
+        }
+        catch (RuntimeException re)
+        {
+            permits.release();
+            throw re;
+        }
+    }
+
+    /**
+     * Waits for a parser to be returned, for at most the configured time.
+     */
+    private boolean awaitPermit()
+    {
+        if (wait <= 0)
+        {
+            return false;
+        }
+
+        waits.increment();
+        long start = System.nanoTime();
+        try
+        {
+            return permits.tryAcquire(wait, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally
+        {
+            waitNanos.add(System.nanoTime() - start);
+        }
     }
 
     /**
-     * Call the wrapped pool.
+     * Returns a parser to the pool, and drops the parsers which have
+     * been idle for too long.
      * @param parser
      */
     public void put(Parser parser)
     {
         parser.ReInit((CharStream) null);
-        pool.put(parser);
+
+        long now = System.currentTimeMillis();
+        idle.offerFirst(new IdleParser(parser, now));
+        permits.release();
+
+        IdleParser oldest = (IdleParser) idle.peekLast();
+        while (oldest != null && now - oldest.since > idleTimeout &&
+               owned.get() > initial && idle.removeLastOccurrence(oldest))
+        {
+            owned.decrementAndGet();
+            discarded.increment();
+            oldest = (IdleParser) idle.peekLast();
+        }
+    }
+
+    /**
+     * Unregisters the pool from JMX. Called by
+     * {@link RuntimeInstance#shutdown()}.
+     * @since 1.8
+     */
+    public synchronized void shutdown()
+    {
+        if (objectName != null)
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+            catch (Exception e)
+            {
+                rsvc.getLog().warn("ParserPool : unable to unregister statistics from JMX", e);
+            }
+            objectName = null;
+        }
+    }
+
+    private Parser newParser()
+    {
+        Parser parser = rsvc.createNewParser();
+        owned.incrementAndGet();
+        created.increment();
+        return parser;
+    }
+
+    /**
+     * @see ParserPoolImplMBean#getMaxSize()
+     */
+    public int getMaxSize()
+    {
+        return max;
+    }
+
+    /**
+     * @see ParserPoolImplMBean#getPooledCount()
+     */
+    public int getPooledCount()
+    {
+        return owned.get();
+    }
+
+    /**
+     * @see ParserPoolImplMBean#getIdleCount()
+     */
+    public int getIdleCount()
+    {
+        return idle.size();
+    }
+
+    /**
+     * @see ParserPoolImplMBean#getActiveCount()
+     */
+    public int getActiveCount()
+    {
+        return max - permits.availablePermits();
+    }
+
+    /**
+     * @see ParserPoolImplMBean#getBorrowCount()
+     */
+    public long getBorrowCount()
+    {
+        return borrows.sum();
+    }
+
+    /**
+     * @see ParserPoolImplMBean#getMissCount()
+     */
+    public long getMissCount()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * @see ParserPoolImplMBean#getWaitCount()
+     */
+    public long getWaitCount()
+    {
+        return waits.sum();
+    }
+
+    /**
+     * @see ParserPoolImplMBean#getWaitTimeMillis()
+     */
+    public long getWaitTimeMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.sum());
+    }
+
+    /**
+     * @see ParserPoolImplMBean#getCreatedCount()
+     */
+    public long getCreatedCount()
+    {
+        return created.sum();
+    }
+
+    /**
+     * @see ParserPoolImplMBean#getDiscardedCount()
+     */
+    public long getDiscardedCount()
+    {
+        return discarded.sum();
     }
 }
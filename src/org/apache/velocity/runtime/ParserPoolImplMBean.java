@@ -0,0 +1,81 @@
+package org.apache.velocity.runtime;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+/**
+ * Management interface of {@link ParserPoolImpl}, under which it is
+ * registered with the platform MBean server when
+ * <code>parser.pool.jmx.enabled</code> is true.
+ *
+ * @since 1.8
+ */
+public interface ParserPoolImplMBean
+{
+    /**
+     * @return the most parsers the pool keeps
+     */
+    int getMaxSize();
+
+    /**
+     * @return number of parsers the pool currently keeps, idle or in use
+     */
+    int getPooledCount();
+
+    /**
+     * @return number of parsers waiting to be used
+     */
+    int getIdleCount();
+
+    /**
+     * @return number of parsers in use
+     */
+    int getActiveCount();
+
+    /**
+     * @return number of times a parser was asked for
+     */
+    long getBorrowCount();
+
+    /**
+     * @return number of times no parser could be had, and a temporary
+     *         one had to be created
+     */
+    long getMissCount();
+
+    /**
+     * @return number of times a parser had to be waited for
+     */
+    long getWaitCount();
+
+    /**
+     * @return total time spent waiting for parsers, in milliseconds
+     */
+    long getWaitTimeMillis();
+
+    /**
+     * @return number of parsers created by the pool
+     */
+    long getCreatedCount();
+
+    /**
+     * @return number of parsers dropped after being idle too long
+     */
+    long getDiscardedCount();
+}
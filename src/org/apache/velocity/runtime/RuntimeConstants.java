@@ -179,6 +179,13 @@ public interface RuntimeConstants
      */
     String EVALUATE_CONTEXT_CLASS = "directive.evaluate.context.class";
 
+    /**
+     * Number of parsed trees of strings rendered by evaluate() and #evaluate
+     * to keep for reuse. 0 disables the cache.
+     * @since 1.8
+     */
+    String EVALUATE_CACHE_SIZE = "evaluate.cache.size";
+
     /**
      * Used to suppress various scope control objects.
      * @since 1.7
@@ -203,6 +210,83 @@ public interface RuntimeConstants
     /** The <code>resource.manager.cache.size</code> property specifies the cache upper bound (if relevant). */
     String RESOURCE_MANAGER_DEFAULTCACHE_SIZE = "resource.manager.defaultcache.size";
 
+    /**
+     * The <code>resource.manager.defaultcache.bytes</code> property bounds the cache by the
+     * estimated memory of its resources instead of by their number (if supported by the cache).
+     * @since 1.8
+     */
+    String RESOURCE_MANAGER_DEFAULTCACHE_BYTES = "resource.manager.defaultcache.bytes";
+
+    /**
+     * If true, resources due for a modification check are served from the
+     * cache right away while the check (and any re-parse) runs in the background.
+     * @since 1.8
+     */
+    String RESOURCE_MANAGER_REFRESH_ASYNC = "resource.manager.refresh.async";
+
+    /**
+     * Number of background threads used when <code>resource.manager.refresh.async</code> is on.
+     * @since 1.8
+     */
+    String RESOURCE_MANAGER_REFRESH_THREADS = "resource.manager.refresh.threads";
+
+    /**
+     * Whether the resource manager asks all resource loaders at once whether they have
+     * a resource it has not loaded before, instead of trying them one after the other.
+     * @since 1.8
+     */
+    String RESOURCE_MANAGER_PROBE_PARALLEL = "resource.manager.probe.parallel";
+
+    /**
+     * Number of background threads used when <code>resource.manager.probe.parallel</code> is on.
+     * @since 1.8
+     */
+    String RESOURCE_MANAGER_PROBE_THREADS = "resource.manager.probe.threads";
+
+    /**
+     * Maximum number of missing resources remembered by the resource manager,
+     * so that repeated lookups don't probe every loader again. 0 (the default) disables this.
+     * @since 1.8
+     */
+    String RESOURCE_MANAGER_NOTFOUND_CACHE_SIZE = "resource.manager.notfound.cache.size";
+
+    /**
+     * How long (in seconds) a missing resource is remembered.
+     * @since 1.8
+     */
+    String RESOURCE_MANAGER_NOTFOUND_CACHE_TTL = "resource.manager.notfound.cache.ttl";
+
+    /**
+     * Directory in which parsed templates are kept between runs, so that unchanged
+     * templates need not be parsed again. Not set (the default) disables this.
+     * @since 1.8
+     */
+    String RESOURCE_MANAGER_SNAPSHOT_DIRECTORY = "resource.manager.snapshot.directory";
+
+    /**
+     * Whether the resource manager registers its cache and loader statistics
+     * with the platform MBean server.
+     * @since 1.8
+     */
+    String RESOURCE_MANAGER_JMX_ENABLED = "resource.manager.jmx.enabled";
+
+    /**
+     * How long (in seconds) the resource manager trusts its record of which loader
+     * provides a resource before probing the loaders again. 0, the default, disables
+     * the record, a negative value keeps it until the loader reports the resource
+     * changed. While the record is trusted, a resource added to a loader with a
+     * higher priority is not seen.
+     * @since 1.8
+     */
+    String RESOURCE_MANAGER_LOADER_INDEX_TTL = "resource.manager.loaderindex.ttl";
+
+    /**
+     * Maximum number of resources whose loader the resource manager records, the least
+     * recently used being forgotten first. 0 disables the record.
+     * @since 1.8
+     */
+    String RESOURCE_MANAGER_LOADER_INDEX_SIZE = "resource.manager.loaderindex.size";
+
     /*
      * ----------------------------------------------------------------------
      * R E S O U R C E  L O A D E R  C O N F I G U R A T I O N
@@ -337,6 +421,13 @@ public interface RuntimeConstants
     /** Switch for ignoring nulls in math equations vs throwing exceptions. */
     String STRICT_MATH = "runtime.strict.math";
 
+    /**
+     * Switch for simplifying the tree of each template after it is parsed.
+     * @see org.apache.velocity.runtime.parser.node.TreeOptimizer
+     * @since 1.8
+     */
+    String OPTIMIZE_TEMPLATES = "runtime.optimize.templates";
+
     /**
      * The <code>parser.pool.class</code> property specifies the name of the {@link org.apache.velocity.util.SimplePool}
      * implementation to use.
@@ -347,6 +438,33 @@ public interface RuntimeConstants
      * @see  #NUMBER_OF_PARSERS
      */
     String PARSER_POOL_SIZE = "parser.pool.size";
+
+    /**
+     * Number of parsers the default parser pool creates up front, and keeps even when idle.
+     * @since 1.8
+     */
+    String PARSER_POOL_INITIAL = "parser.pool.initial";
+
+    /**
+     * How long (in seconds) a parser beyond the initial ones may stay idle in the
+     * default parser pool before it is dropped.
+     * @since 1.8
+     */
+    String PARSER_POOL_IDLE_TIMEOUT = "parser.pool.idle.timeout";
+
+    /**
+     * How long (in milliseconds) the default parser pool waits for a parser to be
+     * returned when all are in use, before a temporary one is created instead.
+     * @since 1.8
+     */
+    String PARSER_POOL_WAIT = "parser.pool.wait";
+
+    /**
+     * Whether the default parser pool registers its statistics with the platform
+     * MBean server.
+     * @since 1.8
+     */
+    String PARSER_POOL_JMX_ENABLED = "parser.pool.jmx.enabled";
     
     /*
      * ----------------------------------------------------------------------
@@ -25,11 +25,17 @@ import java.io.InputStream;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.collections.ExtendedProperties;
 import org.apache.commons.lang.text.StrBuilder;
@@ -58,7 +64,9 @@ import org.apache.velocity.runtime.parser.Parser;
 import org.apache.velocity.runtime.parser.node.Node;
 import org.apache.velocity.runtime.parser.node.SimpleNode;
 import org.apache.velocity.runtime.resource.ContentResource;
+import org.apache.velocity.runtime.resource.PrecompileReport;
 import org.apache.velocity.runtime.resource.ResourceManager;
+import org.apache.velocity.runtime.resource.ResourceManagerImpl;
 import org.apache.velocity.util.ClassUtils;
 import org.apache.velocity.util.RuntimeServicesAware;
 import org.apache.velocity.util.StringUtils;
@@ -202,6 +210,11 @@ public class RuntimeInstance implements RuntimeConstants, RuntimeServices
     private String evaluateScopeName = "evaluate";
     private boolean provideEvaluateScope = false;
 
+    /*
+     * Parsed trees of evaluated strings, if evaluate.cache.size is set
+     */
+    private EvaluateCache evaluateCache = null;
+
     /*
      *  Opaque reference to something specificed by the
      *  application for use in application supplied/specified
@@ -280,6 +293,24 @@ public class RuntimeInstance implements RuntimeConstants, RuntimeServices
         }
     }
 
+    /**
+     * Releases what the engine holds outside of itself - the statistics it
+     * registered with JMX and its background threads. Call this when
+     * discarding an engine; it must not be used afterwards.
+     * @since 1.8
+     */
+    public synchronized void shutdown()
+    {
+        if (resourceManager instanceof ResourceManagerImpl)
+        {
+            ((ResourceManagerImpl) resourceManager).shutdown();
+        }
+        if (parserPool instanceof ParserPoolImpl)
+        {
+            ((ParserPoolImpl) parserPool).shutdown();
+        }
+    }
+
     /**
      * Returns true if the RuntimeInstance has been successfully initialized.
      * @return True if the RuntimeInstance has been successfully initialized.
@@ -1239,6 +1270,24 @@ public class RuntimeInstance implements RuntimeConstants, RuntimeServices
     {
         String property = evaluateScopeName+'.'+PROVIDE_SCOPE_CONTROL;
         provideEvaluateScope = getBoolean(property, provideEvaluateScope);
+
+        int cacheSize = getInt(EVALUATE_CACHE_SIZE, 0);
+        if (cacheSize > 0)
+        {
+            evaluateCache = new EvaluateCache(cacheSize);
+            log.debug("Parsed trees of up to " + cacheSize + " evaluated strings will be cached.");
+        }
+    }
+
+    /**
+     * Returns the cache of the parsed trees of evaluated strings.
+     *
+     * @return the cache, or null if <code>evaluate.cache.size</code> is not set
+     * @since 1.8
+     */
+    public EvaluateCache getEvaluateCache()
+    {
+        return evaluateCache;
     }
 
     /**
@@ -1262,7 +1311,73 @@ public class RuntimeInstance implements RuntimeConstants, RuntimeServices
     public boolean evaluate(Context context,  Writer out,
                             String logTag, String instring)
     {
-        return evaluate(context, out, logTag, new StringReader(instring));
+        return evaluate(context, out, logTag, instring, null);
+    }
+
+    /**
+     * Renders the input string using the context into the output writer,
+     * like {@link #evaluate(Context, Writer, String, String)}.  If the
+     * parsed trees of evaluated strings are cached, the tree of this one
+     * is cached under the given key rather than under the string itself,
+     * which saves comparing long strings; the caller must then use another
+     * key whenever the string changes.
+     *
+     * @param context context to use in rendering input string
+     * @param out  Writer in which to render the output
+     * @param logTag  string to be used as the template name for log
+     *                messages in case of error
+     * @param instring input string containing the VTL to be rendered
+     * @param cacheKey key of the string, or null to use the string itself
+     *
+     * @return true if successful, false otherwise.  If false, see
+     *              Velocity runtime log
+     * @throws ParseErrorException The template could not be parsed.
+     * @throws MethodInvocationException A method on a context object could not be invoked.
+     * @throws ResourceNotFoundException A referenced resource could not be loaded.
+     * @since 1.8
+     */
+    public boolean evaluate(Context context, Writer out,
+                            String logTag, String instring, Object cacheKey)
+    {
+        if (evaluateCache == null)
+        {
+            return evaluate(context, out, logTag, new StringReader(instring));
+        }
+        if (logTag == null)
+        {
+            throw new NullPointerException("logTag (i.e. template name) cannot be null, you must provide an identifier for the content being evaluated");
+        }
+
+        SimpleNode nodeTree = evaluateCache.get(logTag, instring, cacheKey);
+        if (nodeTree != null)
+        {
+            /*
+             *  the same as parsing would do; the tree is initialized already
+             */
+            dumpVMNamespace(logTag);
+            return render(context, out, logTag, nodeTree, false);
+        }
+
+        try
+        {
+            nodeTree = parse(new StringReader(instring), logTag);
+        }
+        catch (ParseException pex)
+        {
+            throw new ParseErrorException(pex, null);
+        }
+        catch (TemplateInitException pex)
+        {
+            throw new ParseErrorException(pex, null);
+        }
+
+        if (nodeTree == null)
+        {
+            return false;
+        }
+        boolean rendered = render(context, out, logTag, nodeTree);
+        evaluateCache.put(logTag, instring, cacheKey, nodeTree);
+        return rendered;
     }
 
     /**
@@ -1335,6 +1450,12 @@ public class RuntimeInstance implements RuntimeConstants, RuntimeServices
      */
     public boolean render(Context context, Writer writer,
                           String logTag, SimpleNode nodeTree)
+    {
+        return render(context, writer, logTag, nodeTree, true);
+    }
+
+    private boolean render(Context context, Writer writer,
+                           String logTag, SimpleNode nodeTree, boolean init)
     {
         /*
          * we want to init then render
@@ -1348,7 +1469,10 @@ public class RuntimeInstance implements RuntimeConstants, RuntimeServices
         {
             try
             {
-                nodeTree.init(ica, this);
+                if (init)
+                {
+                    nodeTree.init(ica, this);
+                }
             }
             catch (TemplateInitException pex)
             {
@@ -1535,6 +1659,103 @@ public class RuntimeInstance implements RuntimeConstants, RuntimeServices
                     ResourceManager.RESOURCE_TEMPLATE, encoding);
     }
 
+    /**
+     * Loads the given templates into the resource cache ahead of time, so
+     * that the first requests after a start don't pay for reading and
+     * parsing them. The templates are loaded in parallel, each exactly as
+     * {@link #getTemplate(String)} would, so only templates whose resource
+     * loader has caching turned on stay loaded. Failures are reported,
+     * not thrown.
+     *
+     * @param templateNames names of the templates to load
+     * @param parallelism number of threads to load with, or 0 for one per processor
+     * @return load time of each template, and the failures
+     * @since 1.8
+     */
+    public PrecompileReport precompileTemplates(Collection templateNames, int parallelism)
+    {
+        requireInitialization();
+
+        final PrecompileReport report = new PrecompileReport();
+        List tasks = new ArrayList(templateNames.size());
+        for (Iterator i = templateNames.iterator(); i.hasNext(); )
+        {
+            final String name = (String) i.next();
+            tasks.add(new Callable()
+            {
+                public Object call()
+                {
+                    long start = System.nanoTime();
+                    try
+                    {
+                        getTemplate(name);
+                        report.loaded(name, System.nanoTime() - start);
+                    }
+                    catch (RuntimeException re)
+                    {
+                        report.failed(name, re);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        ForkJoinPool pool = parallelism > 0 ? new ForkJoinPool(parallelism) : new ForkJoinPool();
+        long start = System.nanoTime();
+        try
+        {
+            pool.invokeAll(tasks);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        report.setElapsedTime(System.nanoTime() - start);
+
+        if (log.isInfoEnabled())
+        {
+            log.info("RuntimeInstance : " + report);
+        }
+        return report;
+    }
+
+    /**
+     * Loads every template the resource loaders can list into the resource
+     * cache ahead of time. Resource loaders which cannot list what they
+     * hold (URL, DataSource, ...) are skipped; use
+     * {@link #precompileTemplates(Collection, int)} with the names for those.
+     *
+     * @param suffix only load the resources whose name ends with this, e.g.
+     *        <code>".vm"</code>, or null for all
+     * @param parallelism number of threads to load with, or 0 for one per processor
+     * @return load time of each template, and the failures
+     * @since 1.8
+     */
+    public PrecompileReport precompileTemplates(String suffix, int parallelism)
+    {
+        requireInitialization();
+
+        List names = new ArrayList();
+        if (resourceManager instanceof ResourceManagerImpl)
+        {
+            Collection all = ((ResourceManagerImpl) resourceManager).listResources();
+            for (Iterator i = all.iterator(); i.hasNext(); )
+            {
+                String name = (String) i.next();
+                if (suffix == null || name.endsWith(suffix))
+                {
+                    names.add(name);
+                }
+            }
+        }
+        else
+        {
+            log.warn("RuntimeInstance : " + resourceManager.getClass().getName() +
+                     " cannot list the templates to precompile.");
+        }
+        return precompileTemplates(names, parallelism);
+    }
+
     /**
      * Returns a static content resource from the
      * resource manager.  Uses the current value
@@ -1886,4 +2107,18 @@ public class RuntimeInstance implements RuntimeConstants, RuntimeServices
         return uberSpect;
     }
 
+    /**
+     * Returns the ResourceManager of this Instance, e.g. to invalidate
+     * what it has cached.
+     *
+     * @return The ResourceManager for this Instance.
+     * @since 1.8
+     */
+    public ResourceManager getResourceManager()
+    {
+        requireInitialization();
+
+        return resourceManager;
+    }
+
 }
@@ -229,6 +229,37 @@ public interface RuntimeServices extends RuntimeLogger
     public boolean evaluate(Context context, Writer writer,
                             String logTag, Reader reader);
 
+    /**
+     * Renders the input string using the context into the output writer.
+     * If the parsed trees of evaluated strings are cached, the tree of
+     * this one is cached under the given key rather than under the string
+     * itself.
+     *
+     * @param context context to use in rendering input string
+     * @param out  Writer in which to render the output
+     * @param logTag  string to be used as the template name for log
+     *                messages in case of error
+     * @param instring input string containing the VTL to be rendered
+     * @param cacheKey key of the string, or null to use the string itself
+     *
+     * @return true if successful, false otherwise.  If false, see
+     *              Velocity runtime log
+     * @throws ParseErrorException The template could not be parsed.
+     * @throws MethodInvocationException A method on a context object could not be invoked.
+     * @throws ResourceNotFoundException A referenced resource could not be loaded.
+     * @since 1.8
+     */
+    public boolean evaluate(Context context, Writer out,
+                            String logTag, String instring, Object cacheKey);
+
+    /**
+     * Returns the cache of the parsed trees of evaluated strings.
+     *
+     * @return the cache, or null if <code>evaluate.cache.size</code> is not set
+     * @since 1.8
+     */
+    public EvaluateCache getEvaluateCache();
+
     /**
      * Invokes a currently registered Velocimacro with the params provided
      * and places the rendered stream into the writer.
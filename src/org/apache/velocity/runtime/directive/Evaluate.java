@@ -29,6 +29,7 @@ import org.apache.velocity.exception.MethodInvocationException;
 import org.apache.velocity.exception.ParseErrorException;
 import org.apache.velocity.exception.ResourceNotFoundException;
 import org.apache.velocity.exception.TemplateInitException;
+import org.apache.velocity.runtime.EvaluateCache;
 import org.apache.velocity.runtime.RuntimeServices;
 import org.apache.velocity.runtime.parser.ParseException;
 import org.apache.velocity.runtime.parser.ParserTreeConstants;
@@ -153,11 +154,21 @@ public class Evaluate extends Directive
          * The new string needs to be parsed since the text has been dynamically generated.
          */
         String templateName = context.getCurrentTemplateName();
+        EvaluateCache cache = rsvc.getEvaluateCache();
         SimpleNode nodeTree = null;
+        boolean cached = false;
 
         try
         {
-            nodeTree = rsvc.parse(new StringReader(sourceText), templateName, false);
+            if (cache != null)
+            {
+                nodeTree = cache.get(templateName, sourceText, null);
+                cached = nodeTree != null;
+            }
+            if (!cached)
+            {
+                nodeTree = rsvc.parse(new StringReader(sourceText), templateName, false);
+            }
         }
         catch (ParseException pex)
         {
@@ -184,14 +195,21 @@ public class Evaluate extends Directive
 
             try
             {
-                try
+                if (!cached)
                 {
-                    nodeTree.init( ica, rsvc );
-                }
-                catch (TemplateInitException pex)
-                {
-                    Info info = new Info( templateName, node.getLine(), node.getColumn() );
-                    throw  new ParseErrorException( pex.getMessage(), info );
+                    try
+                    {
+                        nodeTree.init( ica, rsvc );
+                    }
+                    catch (TemplateInitException pex)
+                    {
+                        Info info = new Info( templateName, node.getLine(), node.getColumn() );
+                        throw  new ParseErrorException( pex.getMessage(), info );
+                    }
+                    if (cache != null)
+                    {
+                        cache.put(templateName, sourceText, null, nodeTree);
+                    }
                 }
 
                 try 
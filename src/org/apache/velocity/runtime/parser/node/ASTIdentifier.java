@@ -21,6 +21,7 @@ package org.apache.velocity.runtime.parser.node;
 
 import java.lang.reflect.InvocationTargetException;
 
+import org.apache.commons.lang.ArrayUtils;
 import org.apache.velocity.app.event.EventHandlerUtil;
 import org.apache.velocity.context.InternalContextAdapter;
 import org.apache.velocity.exception.MethodInvocationException;
@@ -56,6 +57,9 @@ public class ASTIdentifier extends SimpleNode
      *  This is really immutable after the init, so keep one for this node
      */
     protected Info uberInfo;
+
+    /** getters found for the classes this node was applied to */
+    private final CallSiteCache callSite = new CallSiteCache();
     
     /**
      * Indicates if we are running in strict reference mode.
@@ -122,37 +126,22 @@ public class ASTIdentifier extends SimpleNode
         try
         {
             /*
-             *  first, see if we have this information cached.
-             */
-
-            IntrospectionCacheData icd = context.icacheGet(this);
-
-            /*
-             * if we have the cache data and the class of the object we are
-             * invoked with is the same as that in the cache, then we must
-             * be allright.  The last 'variable' is the method name, and
-             * that is fixed in the template :)
+             *  first, see if the node has seen this class before
              */
 
-            if ( icd != null && (o != null) && (icd.contextData == o.getClass()) )
+            Class receiver = (o == null || o instanceof Class) ? null : o.getClass();
+            CallSiteCache.Entry cached = receiver == null ? null : callSite.find(receiver, null);
+            if (cached != null)
             {
-                vg = (VelPropertyGet) icd.thingy;
+                vg = (VelPropertyGet) cached.target;
             }
             else
             {
-                /*
-                 *  otherwise, do the introspection, and cache it.  Use the
-                 *  uberspector
-                 */
-
-                vg = rsvc.getUberspect().getPropertyGet(o,identifier, uberInfo);
+                vg = getPropertyGet(o, context);
 
-                if (vg != null && vg.isCacheable() && (o != null))
+                if (receiver != null && (vg == null || vg.isCacheable()))
                 {
-                    icd = new IntrospectionCacheData();
-                    icd.contextData = o.getClass();
-                    icd.thingy = vg;
-                    context.icachePut(this,icd);
+                    callSite.put(receiver, ArrayUtils.EMPTY_CLASS_ARRAY, vg);
                 }
             }
         }
@@ -264,4 +253,45 @@ public class ASTIdentifier extends SimpleNode
             throw new VelocityException(msg, e);
         }
     }
+
+    /**
+     *  Looks the getter up in the context, then through the uberspector.
+     */
+    private VelPropertyGet getPropertyGet(Object o, InternalContextAdapter context)
+        throws Exception
+    {
+        /*
+         *  see if we have this information cached in the context.
+         */
+
+        IntrospectionCacheData icd = context.icacheGet(this);
+
+        /*
+         * if we have the cache data and the class of the object we are
+         * invoked with is the same as that in the cache, then we must
+         * be allright.  The last 'variable' is the method name, and
+         * that is fixed in the template :)
+         */
+
+        if ( icd != null && (o != null) && (icd.contextData == o.getClass()) )
+        {
+            return (VelPropertyGet) icd.thingy;
+        }
+
+        /*
+         *  otherwise, do the introspection, and cache it.  Use the
+         *  uberspector
+         */
+
+        VelPropertyGet vg = rsvc.getUberspect().getPropertyGet(o,identifier, uberInfo);
+
+        if (vg != null && vg.isCacheable() && (o != null))
+        {
+            icd = new IntrospectionCacheData();
+            icd.contextData = o.getClass();
+            icd.thingy = vg;
+            context.icachePut(this,icd);
+        }
+        return vg;
+    }
 }
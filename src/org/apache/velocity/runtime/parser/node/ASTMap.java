@@ -36,6 +36,9 @@ import org.apache.velocity.runtime.parser.Parser;
  */
 public class ASTMap extends SimpleNode
 {
+    /** entries of the map, when all keys and values are literals */
+    private Map constant = null;
+
     /**
      * @param id
      */
@@ -67,6 +70,12 @@ public class ASTMap extends SimpleNode
     public Object value(InternalContextAdapter context)
         throws MethodInvocationException
     {
+        if (constant != null)
+        {
+            // the caller may modify the map
+            return new LinkedHashMap(constant);
+        }
+
         int size = jjtGetNumChildren();
 
         Map objectMap = new LinkedHashMap();
@@ -84,4 +93,14 @@ public class ASTMap extends SimpleNode
 
         return objectMap;
     }
+
+    /**
+     * Sets the entries computed by the TreeOptimizer, which are
+     * copied on each call to {@link #value(InternalContextAdapter)}.
+     * @param constant
+     */
+    void setConstant(Map constant)
+    {
+        this.constant = constant;
+    }
 }
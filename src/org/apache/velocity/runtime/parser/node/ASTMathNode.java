@@ -44,6 +44,9 @@ public abstract class ASTMathNode extends SimpleNode
 {
     protected boolean strictMode = false;
 
+    /** result of the operation, when folded by the TreeOptimizer */
+    private Object constant = null;
+
     public ASTMathNode(int id)
     {
         super(id);
@@ -72,6 +75,25 @@ public abstract class ASTMathNode extends SimpleNode
         return visitor.visit(this, data);
     }
 
+    /**
+     * @return the folded result of this operation, or null if it
+     *         depends on the context
+     */
+    Object getConstant()
+    {
+        return constant;
+    }
+
+    /**
+     * Makes this node always return the given result, its operands
+     * having been found constant by the TreeOptimizer.
+     * @param constant
+     */
+    void setConstant(Object constant)
+    {
+        this.constant = constant;
+    }
+
     /**
      * gets the two args and performs the operation on them
      *
@@ -81,6 +103,11 @@ public abstract class ASTMathNode extends SimpleNode
      */
     public Object value(InternalContextAdapter context) throws MethodInvocationException
     {
+        if (constant != null)
+        {
+            return constant;
+        }
+
         Object left = jjtGetChild(0).value(context);
         Object right = jjtGetChild(1).value(context);
 
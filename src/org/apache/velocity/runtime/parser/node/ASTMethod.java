@@ -25,6 +25,7 @@ import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.velocity.app.event.EventHandlerUtil;
 import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.context.InternalContextAdapterImpl;
 import org.apache.velocity.exception.MethodInvocationException;
 import org.apache.velocity.exception.TemplateInitException;
 import org.apache.velocity.exception.VelocityException;
@@ -58,6 +59,9 @@ public class ASTMethod extends SimpleNode
 
     protected Info uberInfo;
 
+    /** methods found for the classes this node was applied to */
+    private final CallSiteCache callSite = new CallSiteCache();
+
     /**
      * Indicates if we are running in strict reference mode.
      */
@@ -130,33 +134,88 @@ public class ASTMethod extends SimpleNode
      */
     public Object execute(Object o, InternalContextAdapter context)
         throws MethodInvocationException
+    {
+        if (paramCount == 0)
+        {
+            return execute(o, context, ArrayUtils.EMPTY_OBJECT_ARRAY);
+        }
+
+        /*
+         *  the merge keeps the argument arrays of the calls it makes, so
+         *  that they are not allocated for each call
+         */
+        InternalContextAdapter base = context.getBaseContext();
+        if (!(base instanceof InternalContextAdapterImpl))
+        {
+            return execute(o, context, new Object[paramCount]);
+        }
+
+        InternalContextAdapterImpl merge = (InternalContextAdapterImpl) base;
+        Object [] params = merge.takeArguments(paramCount);
+        try
+        {
+            return execute(o, context, params);
+        }
+        finally
+        {
+            merge.releaseArguments(params);
+        }
+    }
+
+    /**
+     *  Evaluates the arguments into params, then finds and invokes
+     *  the method.
+     */
+    private Object execute(Object o, InternalContextAdapter context, Object [] params)
+        throws MethodInvocationException
     {
         /*
-         *  new strategy (strategery!) for introspection. Since we want
-         *  to be thread- as well as context-safe, we *must* do it now,
-         *  at execution time.  There can be no in-node caching,
-         *  but if we are careful, we can do it in the context.
+         *  introspection is done at execution time, as the method depends
+         *  on the classes of the object and of the arguments.  The result
+         *  is cached in the node for the classes seen so far, and in the
+         *  context beyond that.  Static methods called on a Class object
+         *  depend on the object itself, so they are only cached in the
+         *  context.
          */
-        Object [] params = new Object[paramCount];
 
           /*
            * sadly, we do need recalc the values of the args, as this can
            * change from visit to visit
            */
-        final Class[] paramClasses =       
-            paramCount > 0 ? new Class[paramCount] : ArrayUtils.EMPTY_CLASS_ARRAY;
-
         for (int j = 0; j < paramCount; j++)
         {
             params[j] = jjtGetChild(j + 1).value(context);
-            if (params[j] != null)
+        }
+
+        Class receiver = (o == null || o instanceof Class) ? null : o.getClass();
+        CallSiteCache.Entry cached = receiver == null ? null : callSite.find(receiver, params);
+
+        VelMethod method;
+        if (cached != null && (cached.target != null || !strictRef))
+        {
+            method = (VelMethod) cached.target;
+        }
+        else
+        {
+            final Class[] paramClasses =
+                paramCount > 0 ? new Class[paramCount] : ArrayUtils.EMPTY_CLASS_ARRAY;
+
+            for (int j = 0; j < paramCount; j++)
             {
-                paramClasses[j] = params[j].getClass();
+                if (params[j] != null)
+                {
+                    paramClasses[j] = params[j].getClass();
+                }
+            }
+
+            method = ClassUtils.getMethod(methodName, params, paramClasses,
+                o, context, this, strictRef);
+
+            if (receiver != null && (method == null || method.isCacheable()))
+            {
+                callSite.put(receiver, paramClasses, method);
             }
         }
-            
-        VelMethod method = ClassUtils.getMethod(methodName, params, paramClasses, 
-            o, context, this, strictRef);
         if (method == null) return null;
 
         try
@@ -31,6 +31,9 @@ import org.apache.velocity.runtime.parser.Parser;
  */
 public class ASTObjectArray extends SimpleNode
 {
+    /** elements of the list, when all of them are literals */
+    private List constant = null;
+
     /**
      * @param id
      */
@@ -63,6 +66,12 @@ public class ASTObjectArray extends SimpleNode
     public Object value( InternalContextAdapter context)
         throws MethodInvocationException
     {
+        if (constant != null)
+        {
+            // the caller may modify the list
+            return new ArrayList(constant);
+        }
+
         int size = jjtGetNumChildren();
 
         // since we know the amount of elements, initialize arraylist with proper size
@@ -75,4 +84,14 @@ public class ASTObjectArray extends SimpleNode
 
         return objectArray;
     }
+
+    /**
+     * Sets the elements computed by the TreeOptimizer, which are
+     * copied on each call to {@link #value(InternalContextAdapter)}.
+     * @param constant
+     */
+    void setConstant(List constant)
+    {
+        this.constant = constant;
+    }
 }
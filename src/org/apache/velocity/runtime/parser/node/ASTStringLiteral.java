@@ -23,6 +23,7 @@ import java.io.StringWriter;
 
 import org.apache.commons.lang.text.StrBuilder;
 import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.context.InternalContextAdapterImpl;
 import org.apache.velocity.exception.TemplateInitException;
 import org.apache.velocity.exception.VelocityException;
 import org.apache.velocity.runtime.RuntimeConstants;
@@ -184,10 +185,61 @@ public class ASTStringLiteral extends SimpleNode
              */
 
             nodeTree.init(context, rsvc);
+
+            /*
+             * a $ or # need not start a reference or directive; if there
+             * is none, the value is known now
+             */
+            if (isStatic(nodeTree))
+            {
+                try
+                {
+                    StringWriter writer = new StringWriter();
+                    nodeTree.render(context, writer);
+                    image = removeKludgeSpace(writer.toString());
+                    interpolate = false;
+                    nodeTree = null;
+                }
+                catch (IOException e)
+                {
+                    // cannot happen with a StringWriter
+                    throw new VelocityException("Error in interpolating string literal", e);
+                }
+            }
         }
 
         return data;
     }
+
+    /**
+     * Whether the tree of an interpolated string is only text, and so
+     * renders the same whatever the context.
+     */
+    private static boolean isStatic(Node tree)
+    {
+        for (int i = 0; i < tree.jjtGetNumChildren(); i++)
+        {
+            Node child = tree.jjtGetChild(i);
+            if (!(child instanceof ASTText) && !(child instanceof ASTComment))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * If appropriate, removes the space from the end of an interpolated
+     * string (dreaded <MORE> kludge part deux).
+     */
+    private String removeKludgeSpace(String s)
+    {
+        if (!containsLineComment && s.length() > 0)
+        {
+            return s.substring(0, s.length() - 1);
+        }
+        return s;
+    }
     
     /**
      * Adjust all the line and column numbers that comprise a node so that they
@@ -320,33 +372,42 @@ public class ASTStringLiteral extends SimpleNode
     {
         if (interpolate)
         {
+            /*
+             * the merge keeps the buffer interpolations render into
+             */
+            InternalContextAdapter base = context.getBaseContext();
+            InternalContextAdapterImpl merge = null;
+            StrBuilder buffer;
+            if (base instanceof InternalContextAdapterImpl)
+            {
+                merge = (InternalContextAdapterImpl) base;
+                buffer = merge.takeBuffer();
+            }
+            else
+            {
+                buffer = new StrBuilder();
+            }
+
             try
             {
                 /*
                  * now render against the real context
                  */
 
-                StringWriter writer = new StringWriter();
-                nodeTree.render(context, writer);
+                nodeTree.render(context, buffer.asWriter());
 
                 /*
-                 * and return the result as a String
+                 * and return the result as a String, if appropriate
+                 * without the space at the end (dreaded <MORE> kludge
+                 * part deux)
                  */
 
-                String ret = writer.toString();
-
-                /*
-                 * if appropriate, remove the space from the end (dreaded <MORE>
-                 * kludge part deux)
-                 */
-                if (!containsLineComment && ret.length() > 0)
-                {
-                    return ret.substring(0, ret.length() - 1);
-                }
-                else
+                int length = buffer.length();
+                if (!containsLineComment && length > 0)
                 {
-                    return ret;
+                    length--;
                 }
+                return buffer.substring(0, length);
             }
 
             /**
@@ -364,6 +425,13 @@ public class ASTStringLiteral extends SimpleNode
                 throw new VelocityException(msg, e);
             }
 
+            finally
+            {
+                if (merge != null)
+                {
+                    merge.releaseBuffer(buffer);
+                }
+            }
         }
 
         /*
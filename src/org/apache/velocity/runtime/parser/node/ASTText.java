@@ -34,6 +34,9 @@ public class ASTText extends SimpleNode
 {
     private char[] ctext;
 
+    /** set when the text was supplied by the TreeOptimizer */
+    private boolean merged = false;
+
     /**
      * @param id
      */
@@ -65,15 +68,29 @@ public class ASTText extends SimpleNode
     public Object init( InternalContextAdapter context, Object data)
     throws TemplateInitException
     {
-        Token t = getFirstToken();
+        if (!merged)
+        {
+            Token t = getFirstToken();
 
-        String text = NodeUtils.tokenLiteral( t );
+            String text = NodeUtils.tokenLiteral( t );
 
-        ctext = text.toCharArray();
+            ctext = text.toCharArray();
+        }
 
         return data;
     }
 
+    /**
+     * Replaces the text of this node, used by the TreeOptimizer when
+     * several static nodes are merged into one.
+     * @param text
+     */
+    void setText(char[] text)
+    {
+        ctext = text;
+        merged = true;
+    }
+
     /**
      * @see org.apache.velocity.runtime.parser.node.SimpleNode#render(InternalContextAdapter, Writer)
      */
@@ -0,0 +1,134 @@
+package org.apache.velocity.runtime.parser.node;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+import java.util.Arrays;
+
+/**
+ * Inline cache of the introspection done by an ASTMethod or ASTIdentifier,
+ * keyed by the class of the object the node is applied to and, for
+ * methods, by the classes of the arguments.  Failed lookups are cached
+ * too.  Up to four receivers are remembered, after which the node goes
+ * back to looking them up through the context.  Entries are immutable and
+ * published through a volatile array, so a node can be rendered by any
+ * number of threads.
+ *
+ * @since 1.8
+ */
+final class CallSiteCache
+{
+    private static final int MAX_ENTRIES = 4;
+
+    private static final Entry[] EMPTY = new Entry[0];
+
+    private volatile Entry[] entries = EMPTY;
+
+    private boolean megamorphic = false;
+
+    /**
+     * @param receiver class of the object the node is applied to
+     * @param args argument values, or null for an identifier
+     * @return the matching entry, or null
+     */
+    Entry find(Class receiver, Object[] args)
+    {
+        Entry[] current = entries;
+        for (int i = 0; i < current.length; i++)
+        {
+            if (current[i].matches(receiver, args))
+            {
+                return current[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param receiver class of the object the node is applied to
+     * @param argClasses classes of the arguments, null for null values
+     * @param target the method or getter found, or null if none was
+     */
+    synchronized void put(Class receiver, Class[] argClasses, Object target)
+    {
+        if (megamorphic)
+        {
+            return;
+        }
+
+        Entry[] current = entries;
+        for (int i = 0; i < current.length; i++)
+        {
+            if (current[i].receiver == receiver
+                && Arrays.equals(current[i].argClasses, argClasses))
+            {
+                return;
+            }
+        }
+
+        if (current.length == MAX_ENTRIES)
+        {
+            megamorphic = true;
+            entries = EMPTY;
+            return;
+        }
+
+        Entry[] grown = new Entry[current.length + 1];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        grown[current.length] = new Entry(receiver, argClasses, target);
+        entries = grown;
+    }
+
+    /**
+     * One receiver, with the result of the lookup.
+     */
+    static final class Entry
+    {
+        final Class receiver;
+
+        final Class[] argClasses;
+
+        /** the VelMethod or VelPropertyGet, null if there is none */
+        final Object target;
+
+        Entry(Class receiver, Class[] argClasses, Object target)
+        {
+            this.receiver = receiver;
+            this.argClasses = argClasses;
+            this.target = target;
+        }
+
+        boolean matches(Class receiver, Object[] args)
+        {
+            if (this.receiver != receiver)
+            {
+                return false;
+            }
+            for (int i = 0; i < argClasses.length; i++)
+            {
+                Class argClass = args[i] == null ? null : args[i].getClass();
+                if (argClass != argClasses[i])
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package org.apache.velocity.runtime.parser.node;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.velocity.runtime.parser.Parser;
+import org.apache.velocity.runtime.parser.ParserTreeConstants;
+import org.apache.velocity.runtime.parser.Token;
+
+/**
+ * Writes a freshly parsed AST, together with the tokens it refers to, in a
+ * compact binary form and reads it back, so that a template which has not
+ * changed does not have to go through the parser again.
+ *
+ * The tokens are written first as a table, with their <code>next</code> and
+ * <code>specialToken</code> links turned into indices into that table. The
+ * nodes follow in document order, each one with its node id, the indices of
+ * its first and last tokens, and whatever the parser stored on it apart from
+ * its children (the escape text of ASTEscape and the name of ASTDirective).
+ * The class of every node is implied by its id, which is how the parser
+ * itself chooses it.
+ *
+ * The tree must be written before it is init()-ed, and a tree which has been
+ * read back must be init()-ed just like a new one.
+ *
+ * @since 1.8
+ */
+public class NodeSnapshot
+{
+    /**
+     * Bumped whenever the layout written here, or the grammar behind the
+     * token kinds and node ids, changes.
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    private static final String NODE_PACKAGE = "org.apache.velocity.runtime.parser.node.AST";
+
+    private static final Class[] CONSTRUCTOR_ARGS = new Class[] { Integer.TYPE };
+
+    private static final Constructor[] constructors =
+        new Constructor[ParserTreeConstants.jjtNodeName.length];
+
+    private NodeSnapshot()
+    {
+    }
+
+    /**
+     * Writes the given tree.
+     *
+     * @param root root of a tree returned by the parser
+     * @param out where to write it
+     * @throws IOException if the tree contains a node the parser could not
+     *         have produced, or if writing fails
+     */
+    public static void write(SimpleNode root, DataOutput out)
+        throws IOException
+    {
+        Map index = new IdentityHashMap();
+        List tokens = new ArrayList();
+        collectTokens(root, index, tokens);
+
+        out.writeInt(tokens.size());
+        for (int i = 0, k = tokens.size(); i < k; i++)
+        {
+            Token t = (Token) tokens.get(i);
+            out.writeInt(t.kind);
+            out.writeInt(t.beginLine);
+            out.writeInt(t.beginColumn);
+            out.writeInt(t.endLine);
+            out.writeInt(t.endColumn);
+            writeString(t.image, out);
+            out.writeInt(indexOf(t.next, index));
+            out.writeInt(indexOf(t.specialToken, index));
+        }
+
+        writeNode(root, index, out);
+    }
+
+    /**
+     * Reads a tree written by {@link #write(SimpleNode, DataOutput)}.
+     *
+     * @param in where to read it from
+     * @param parser the parser the nodes will consult about directives
+     *        when they are init()-ed
+     * @return root of the tree
+     * @throws IOException if the data is not a valid snapshot, or if reading fails
+     */
+    public static SimpleNode read(DataInput in, Parser parser)
+        throws IOException
+    {
+        int count = in.readInt();
+        if (count < 0)
+        {
+            throw new IOException("Invalid token count " + count);
+        }
+
+        Token[] tokens = new Token[count];
+        int[] links = new int[2 * count];
+        for (int i = 0; i < count; i++)
+        {
+            Token t = new Token();
+            t.kind = in.readInt();
+            t.beginLine = in.readInt();
+            t.beginColumn = in.readInt();
+            t.endLine = in.readInt();
+            t.endColumn = in.readInt();
+            t.image = readString(in);
+            links[2 * i] = in.readInt();
+            links[2 * i + 1] = in.readInt();
+            tokens[i] = t;
+        }
+        for (int i = 0; i < count; i++)
+        {
+            tokens[i].next = tokenAt(tokens, links[2 * i]);
+            tokens[i].specialToken = tokenAt(tokens, links[2 * i + 1]);
+        }
+
+        return readNode(in, tokens, parser);
+    }
+
+    /**
+     * Gathers every token reachable from the tree, following both the
+     * regular and the special token links.
+     */
+    private static void collectTokens(Node root, Map index, List tokens)
+    {
+        List pending = new ArrayList();
+        List nodes = new ArrayList();
+        nodes.add(root);
+        while (!nodes.isEmpty())
+        {
+            Node node = (Node) nodes.remove(nodes.size() - 1);
+            pending.add(node.getFirstToken());
+            pending.add(node.getLastToken());
+            for (int i = 0, k = node.jjtGetNumChildren(); i < k; i++)
+            {
+                nodes.add(node.jjtGetChild(i));
+            }
+        }
+
+        while (!pending.isEmpty())
+        {
+            Token t = (Token) pending.remove(pending.size() - 1);
+            if (t != null && !index.containsKey(t))
+            {
+                index.put(t, new Integer(tokens.size()));
+                tokens.add(t);
+                pending.add(t.next);
+                pending.add(t.specialToken);
+            }
+        }
+    }
+
+    private static void writeNode(Node node, Map index, DataOutput out)
+        throws IOException
+    {
+        SimpleNode simple = (SimpleNode) node;
+        int id = simple.id;
+        if (id < 0 || id >= ParserTreeConstants.jjtNodeName.length ||
+            !node.getClass().getName().equals(NODE_PACKAGE + ParserTreeConstants.jjtNodeName[id]))
+        {
+            throw new IOException("Cannot write node " + node.getClass().getName() +
+                                  " with id " + id);
+        }
+
+        out.writeInt(id);
+        out.writeInt(simple.info);
+        out.writeBoolean(simple.invalid);
+        out.writeInt(indexOf(simple.first, index));
+        out.writeInt(indexOf(simple.last, index));
+        writeString(simple.templateName, out);
+
+        if (node instanceof ASTEscape)
+        {
+            writeString(((ASTEscape) node).val, out);
+        }
+        else if (node instanceof ASTDirective)
+        {
+            writeString(((ASTDirective) node).getDirectiveName(), out);
+        }
+
+        int children = node.jjtGetNumChildren();
+        out.writeInt(children);
+        for (int i = 0; i < children; i++)
+        {
+            writeNode(node.jjtGetChild(i), index, out);
+        }
+    }
+
+    private static SimpleNode readNode(DataInput in, Token[] tokens, Parser parser)
+        throws IOException
+    {
+        SimpleNode node = newNode(in.readInt());
+        node.parser = parser;
+        node.info = in.readInt();
+        node.invalid = in.readBoolean();
+        node.first = tokenAt(tokens, in.readInt());
+        node.last = tokenAt(tokens, in.readInt());
+        node.templateName = readString(in);
+
+        if (node instanceof ASTEscape)
+        {
+            ((ASTEscape) node).val = readString(in);
+        }
+        else if (node instanceof ASTDirective)
+        {
+            ((ASTDirective) node).setDirectiveName(readString(in));
+        }
+
+        int children = in.readInt();
+        if (children < 0)
+        {
+            throw new IOException("Invalid child count " + children);
+        }
+
+        /*
+         *  the parser adds the children last to first
+         */
+        SimpleNode[] read = new SimpleNode[children];
+        for (int i = 0; i < children; i++)
+        {
+            read[i] = readNode(in, tokens, parser);
+            read[i].jjtSetParent(node);
+        }
+        for (int i = children - 1; i >= 0; i--)
+        {
+            node.jjtAddChild(read[i], i);
+        }
+        return node;
+    }
+
+    private static SimpleNode newNode(int id)
+        throws IOException
+    {
+        if (id < 0 || id >= constructors.length)
+        {
+            throw new IOException("Invalid node id " + id);
+        }
+
+        try
+        {
+            Constructor constructor = constructors[id];
+            if (constructor == null)
+            {
+                constructor = Class.forName(NODE_PACKAGE + ParserTreeConstants.jjtNodeName[id])
+                    .getConstructor(CONSTRUCTOR_ARGS);
+                constructors[id] = constructor;
+            }
+            return (SimpleNode) constructor.newInstance(new Object[] { new Integer(id) });
+        }
+        catch (Exception e)
+        {
+            IOException ioe = new IOException("Cannot create node with id " + id);
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    private static int indexOf(Token t, Map index)
+    {
+        return t == null ? -1 : ((Integer) index.get(t)).intValue();
+    }
+
+    private static Token tokenAt(Token[] tokens, int i)
+        throws IOException
+    {
+        if (i == -1)
+        {
+            return null;
+        }
+        if (i < 0 || i >= tokens.length)
+        {
+            throw new IOException("Invalid token index " + i);
+        }
+        return tokens[i];
+    }
+
+    /*
+     *  writeUTF() is limited to 64k, which a block of text can exceed
+     */
+
+    private static void writeString(String s, DataOutput out)
+        throws IOException
+    {
+        if (s == null)
+        {
+            out.writeInt(-1);
+        }
+        else
+        {
+            byte[] bytes = s.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInput in)
+        throws IOException
+    {
+        int length = in.readInt();
+        if (length == -1)
+        {
+            return null;
+        }
+        if (length < 0)
+        {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
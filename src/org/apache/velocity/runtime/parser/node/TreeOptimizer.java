@@ -0,0 +1,588 @@
+package org.apache.velocity.runtime.parser.node;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.log.Log;
+import org.apache.velocity.runtime.parser.ParserTreeConstants;
+import org.apache.velocity.runtime.visitor.BaseVisitor;
+
+/**
+ * Simplifies an initialized AST before it is rendered for the first
+ * time.  Adjacent text, comment and escape nodes are merged into a
+ * single text node, math and comparisons between literals are computed
+ * once, branches of an #if that can never be taken are removed, and
+ * lists and maps made of literals are built once.  Macro bodies are left
+ * alone, since they are shared by every template using the macro.
+ *
+ * @since 1.8
+ */
+public class TreeOptimizer extends BaseVisitor
+{
+    private final Log log;
+
+    private int nodesBefore;
+
+    private int nodesAfter;
+
+    /**
+     * @param rsvc
+     */
+    public TreeOptimizer(RuntimeServices rsvc)
+    {
+        this.log = rsvc.getLog();
+    }
+
+    /**
+     * Optimizes the given tree, which must have been initialized.
+     * @param tree
+     * @param templateName name used in the log message
+     * @return the tree
+     */
+    public Node optimize(Node tree, String templateName)
+    {
+        nodesBefore = count(tree);
+        tree.jjtAccept(this, null);
+        nodesAfter = count(tree);
+
+        if (log.isDebugEnabled())
+        {
+            log.debug("TreeOptimizer : reduced '" + templateName + "' from "
+                      + nodesBefore + " to " + nodesAfter + " nodes");
+        }
+        return tree;
+    }
+
+    /**
+     * @return the number of nodes before the last optimization
+     */
+    public int getNodesBefore()
+    {
+        return nodesBefore;
+    }
+
+    /**
+     * @return the number of nodes after the last optimization
+     */
+    public int getNodesAfter()
+    {
+        return nodesAfter;
+    }
+
+    /**
+     * @see ParserVisitor#visit(ASTprocess, Object)
+     */
+    public Object visit(ASTprocess node, Object data)
+    {
+        data = node.childrenAccept(this, data);
+        compact(node);
+        return data;
+    }
+
+    /**
+     * @see ParserVisitor#visit(ASTBlock, Object)
+     */
+    public Object visit(ASTBlock node, Object data)
+    {
+        data = node.childrenAccept(this, data);
+        compact(node);
+        return data;
+    }
+
+    /**
+     * @see ParserVisitor#visit(ASTDirective, Object)
+     */
+    public Object visit(ASTDirective node, Object data)
+    {
+        if ("macro".equals(node.getDirectiveName()))
+        {
+            return data;
+        }
+        return node.childrenAccept(this, data);
+    }
+
+    /**
+     * Math nodes all dispatch here, see ASTMathNode#jjtAccept.
+     * @see ParserVisitor#visit(SimpleNode, Object)
+     */
+    public Object visit(SimpleNode node, Object data)
+    {
+        if (node instanceof ASTMathNode)
+        {
+            return fold((ASTMathNode) node, data);
+        }
+        return node.childrenAccept(this, data);
+    }
+
+    /**
+     * @see ParserVisitor#visit(ASTEQNode, Object)
+     */
+    public Object visit(ASTEQNode node, Object data)
+    {
+        data = node.childrenAccept(this, data);
+        if (sameKind(node.jjtGetChild(0), node.jjtGetChild(1)))
+        {
+            replace(node, node.evaluate(context));
+        }
+        return data;
+    }
+
+    /**
+     * @see ParserVisitor#visit(ASTNENode, Object)
+     */
+    public Object visit(ASTNENode node, Object data)
+    {
+        data = node.childrenAccept(this, data);
+        if (sameKind(node.jjtGetChild(0), node.jjtGetChild(1)))
+        {
+            replace(node, node.evaluate(context));
+        }
+        return data;
+    }
+
+    /**
+     * @see ParserVisitor#visit(ASTLTNode, Object)
+     */
+    public Object visit(ASTLTNode node, Object data)
+    {
+        return compare(node, data);
+    }
+
+    /**
+     * @see ParserVisitor#visit(ASTGTNode, Object)
+     */
+    public Object visit(ASTGTNode node, Object data)
+    {
+        return compare(node, data);
+    }
+
+    /**
+     * @see ParserVisitor#visit(ASTLENode, Object)
+     */
+    public Object visit(ASTLENode node, Object data)
+    {
+        return compare(node, data);
+    }
+
+    /**
+     * @see ParserVisitor#visit(ASTGENode, Object)
+     */
+    public Object visit(ASTGENode node, Object data)
+    {
+        return compare(node, data);
+    }
+
+    /**
+     * @see ParserVisitor#visit(ASTAndNode, Object)
+     */
+    public Object visit(ASTAndNode node, Object data)
+    {
+        data = node.childrenAccept(this, data);
+        Node left = node.jjtGetChild(0);
+        Node right = node.jjtGetChild(1);
+
+        /*
+         * the right side is never evaluated when the left one is false
+         */
+        if (left instanceof ASTFalse)
+        {
+            replace(node, false);
+        }
+        else if (left instanceof ASTTrue && isBoolean(right))
+        {
+            replace(node, right instanceof ASTTrue);
+        }
+        return data;
+    }
+
+    /**
+     * @see ParserVisitor#visit(ASTOrNode, Object)
+     */
+    public Object visit(ASTOrNode node, Object data)
+    {
+        data = node.childrenAccept(this, data);
+        Node left = node.jjtGetChild(0);
+        Node right = node.jjtGetChild(1);
+
+        /*
+         * the right side is never evaluated when the left one is true
+         */
+        if (left instanceof ASTTrue)
+        {
+            replace(node, true);
+        }
+        else if (left instanceof ASTFalse && isBoolean(right))
+        {
+            replace(node, right instanceof ASTTrue);
+        }
+        return data;
+    }
+
+    /**
+     * @see ParserVisitor#visit(ASTNotNode, Object)
+     */
+    public Object visit(ASTNotNode node, Object data)
+    {
+        data = node.childrenAccept(this, data);
+        if (isBoolean(node.jjtGetChild(0)))
+        {
+            replace(node, node.jjtGetChild(0) instanceof ASTFalse);
+        }
+        return data;
+    }
+
+    /**
+     * @see ParserVisitor#visit(ASTObjectArray, Object)
+     */
+    public Object visit(ASTObjectArray node, Object data)
+    {
+        data = node.childrenAccept(this, data);
+        int size = node.jjtGetNumChildren();
+        for (int i = 0; i < size; i++)
+        {
+            if (!isLiteral(node.jjtGetChild(i)))
+            {
+                return data;
+            }
+        }
+
+        List list = new ArrayList(size);
+        for (int i = 0; i < size; i++)
+        {
+            list.add(node.jjtGetChild(i).value(context));
+        }
+        node.setConstant(list);
+        node.children = null;
+        return data;
+    }
+
+    /**
+     * @see ParserVisitor#visit(ASTMap, Object)
+     */
+    public Object visit(ASTMap node, Object data)
+    {
+        data = node.childrenAccept(this, data);
+        int size = node.jjtGetNumChildren();
+        for (int i = 0; i < size; i++)
+        {
+            if (!isLiteral(node.jjtGetChild(i)))
+            {
+                return data;
+            }
+        }
+
+        Map map = new LinkedHashMap();
+        for (int i = 0; i < size; i += 2)
+        {
+            map.put(node.jjtGetChild(i).value(context),
+                    node.jjtGetChild(i + 1).value(context));
+        }
+        node.setConstant(map);
+        node.children = null;
+        return data;
+    }
+
+    /**
+     * Computes a math operation once if both operands are numbers.
+     */
+    private Object fold(ASTMathNode node, Object data)
+    {
+        data = node.childrenAccept(this, data);
+        Node left = node.jjtGetChild(0);
+        Node right = node.jjtGetChild(1);
+        if (!isNumber(left) || !isNumber(right))
+        {
+            return data;
+        }
+
+        /*
+         * leave a division by zero to be reported at render time
+         */
+        if ((node instanceof ASTDivNode || node instanceof ASTModNode)
+            && ((Number) right.value(context)).doubleValue() == 0)
+        {
+            return data;
+        }
+
+        Object result;
+        try
+        {
+            result = node.value(context);
+        }
+        catch (RuntimeException e)
+        {
+            return data;
+        }
+
+        if (result instanceof Number)
+        {
+            node.setConstant(result);
+            node.children = null;
+        }
+        return data;
+    }
+
+    /**
+     * Computes a relational operation once if both operands are numbers.
+     */
+    private Object compare(SimpleNode node, Object data)
+    {
+        data = node.childrenAccept(this, data);
+        if (isNumber(node.jjtGetChild(0)) && isNumber(node.jjtGetChild(1)))
+        {
+            replace(node, node.evaluate(context));
+        }
+        return data;
+    }
+
+    /**
+     * Puts an ASTTrue or ASTFalse holding the given result in
+     * place of the node.
+     */
+    private void replace(SimpleNode node, boolean result)
+    {
+        SimpleNode constant = result
+            ? (SimpleNode) new ASTTrue(ParserTreeConstants.JJTTRUE)
+            : (SimpleNode) new ASTFalse(ParserTreeConstants.JJTFALSE);
+        constant.first = node.first;
+        constant.last = node.last;
+        constant.templateName = node.templateName;
+        constant.rsvc = node.rsvc;
+        constant.log = node.log;
+
+        SimpleNode parent = (SimpleNode) node.jjtGetParent();
+        constant.jjtSetParent(parent);
+        for (int i = 0; i < parent.children.length; i++)
+        {
+            if (parent.children[i] == node)
+            {
+                parent.children[i] = constant;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Replaces #if statements whose outcome is known with the block
+     * they render, then merges runs of static nodes.
+     */
+    private void compact(SimpleNode node)
+    {
+        if (node.children == null)
+        {
+            return;
+        }
+
+        List result = new ArrayList(node.children.length);
+        boolean changed = false;
+
+        for (int i = 0; i < node.children.length; i++)
+        {
+            Node child = node.children[i];
+            if (child instanceof ASTIfStatement)
+            {
+                Node taken = takenBranch(child);
+                if (taken != child)
+                {
+                    if (taken != null)
+                    {
+                        for (int j = 0; j < taken.jjtGetNumChildren(); j++)
+                        {
+                            result.add(taken.jjtGetChild(j));
+                        }
+                    }
+                    changed = true;
+                    continue;
+                }
+            }
+            result.add(child);
+        }
+
+        /*
+         * merge the static runs
+         */
+        List merged = new ArrayList(result.size());
+        for (int i = 0; i < result.size(); )
+        {
+            int j = i;
+            while (j < result.size() && isStatic((Node) result.get(j)))
+            {
+                j++;
+            }
+
+            if (j - i > 1)
+            {
+                merged.add(merge(result.subList(i, j), node));
+                changed = true;
+                i = j;
+            }
+            else
+            {
+                merged.add(result.get(i));
+                i++;
+            }
+        }
+
+        if (changed)
+        {
+            node.children = (Node[]) merged.toArray(new Node[merged.size()]);
+            for (int i = 0; i < node.children.length; i++)
+            {
+                node.children[i].jjtSetParent(node);
+            }
+        }
+    }
+
+    /**
+     * @return the block an #if statement always renders, null if it
+     *         never renders anything, or the statement itself if this
+     *         depends on the context
+     */
+    private Node takenBranch(Node ifStatement)
+    {
+        /*
+         * children are the expression, the block, then any #elseif
+         * (expression, block) and #else (block)
+         */
+        Node condition = ifStatement.jjtGetChild(0).jjtGetChild(0);
+        if (condition instanceof ASTTrue)
+        {
+            return ifStatement.jjtGetChild(1);
+        }
+        else if (!(condition instanceof ASTFalse))
+        {
+            return ifStatement;
+        }
+
+        for (int i = 2; i < ifStatement.jjtGetNumChildren(); i++)
+        {
+            Node branch = ifStatement.jjtGetChild(i);
+            if (branch instanceof ASTElseStatement)
+            {
+                return branch.jjtGetChild(0);
+            }
+
+            condition = branch.jjtGetChild(0).jjtGetChild(0);
+            if (condition instanceof ASTTrue)
+            {
+                return branch.jjtGetChild(1);
+            }
+            else if (!(condition instanceof ASTFalse))
+            {
+                return ifStatement;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Builds a text node rendering the given static nodes.
+     */
+    private ASTText merge(List run, SimpleNode parent)
+    {
+        StringWriter text = new StringWriter();
+        for (int i = 0; i < run.size(); i++)
+        {
+            try
+            {
+                ((Node) run.get(i)).render(context, text);
+            }
+            catch (IOException e)
+            {
+                // cannot happen with a StringWriter
+            }
+        }
+
+        SimpleNode first = (SimpleNode) run.get(0);
+        SimpleNode last = (SimpleNode) run.get(run.size() - 1);
+
+        ASTText node = new ASTText(ParserTreeConstants.JJTTEXT);
+        node.first = first.first;
+        node.last = last.last;
+        node.templateName = first.templateName;
+        node.rsvc = first.rsvc;
+        node.log = first.log;
+        node.jjtSetParent(parent);
+        node.setText(text.toString().toCharArray());
+        return node;
+    }
+
+    private static boolean isStatic(Node node)
+    {
+        return node instanceof ASTText
+            || node instanceof ASTComment
+            || node instanceof ASTEscape;
+    }
+
+    private static boolean isNumber(Node node)
+    {
+        return node instanceof ASTIntegerLiteral
+            || node instanceof ASTFloatingPointLiteral
+            || (node instanceof ASTMathNode
+                && ((ASTMathNode) node).getConstant() != null);
+    }
+
+    private static boolean isBoolean(Node node)
+    {
+        return node instanceof ASTTrue || node instanceof ASTFalse;
+    }
+
+    private static boolean isString(Node node)
+    {
+        return node instanceof ASTStringLiteral
+            && ((ASTStringLiteral) node).isConstant();
+    }
+
+    /**
+     * @return true if both nodes are literals of the same kind, which
+     *         can be compared without side effect
+     */
+    private static boolean sameKind(Node left, Node right)
+    {
+        return (isNumber(left) && isNumber(right))
+            || (isBoolean(left) && isBoolean(right))
+            || (isString(left) && isString(right));
+    }
+
+    /**
+     * @return true for immutable literals
+     */
+    private static boolean isLiteral(Node node)
+    {
+        return isNumber(node) || isBoolean(node) || isString(node);
+    }
+
+    private static int count(Node node)
+    {
+        int count = 1;
+        for (int i = 0; i < node.jjtGetNumChildren(); i++)
+        {
+            count += count(node.jjtGetChild(i));
+        }
+        return count;
+    }
+}
@@ -0,0 +1,658 @@
+package org.apache.velocity.runtime.resource;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeServices;
+
+/**
+ * Concurrent implementation of the resource cache, for servers where the
+ * monitor of the synchronized {@link ResourceCacheImpl} becomes a point of
+ * contention. Select it with
+ * <code>resource.manager.cache.class = org.apache.velocity.runtime.resource.ConcurrentResourceCacheImpl</code>.
+ *
+ * <p>Lookups are a plain <code>ConcurrentHashMap</code> read. The access
+ * is then recorded in a small per-thread-stripe buffer which may drop
+ * entries under load, and which is replayed against the eviction policy
+ * by whichever thread manages to take the policy lock without waiting.
+ * Only stores and removals, which happen when a resource is (re)loaded,
+ * ever wait for that lock.</p>
+ *
+ * <p>The size is bounded by the <code>resource.manager.defaultcache.size</code>
+ * property, with <code>0</code> or less meaning unbounded, like
+ * {@link ResourceCacheImpl}. If <code>resource.manager.defaultcache.bytes</code>
+ * is set, it replaces the entry count: each entry then weighs
+ * {@link Resource#getEstimatedSize()} and the cache is kept within that
+ * many bytes, so that one huge report template counts for as much as the
+ * many small snippets it would otherwise crowd out. Eviction follows the Window TinyLFU policy:
+ * new entries go through a small LRU window, and an entry falling out of
+ * the window only displaces an older entry of the main space if it has
+ * been used more often, as estimated by a count-min sketch with periodic
+ * aging. One-off lookups of many different templates (crawlers, admin
+ * pages) therefore cannot flush the templates used all the time.</p>
+ *
+ * @since 1.8
+ */
+public class ConcurrentResourceCacheImpl implements ResourceCache
+{
+    /** Share of the capacity given to the admission window, in percent. */
+    private static final int WINDOW_PERCENT = 1;
+
+    /** Share of the main space given to the protected segment, in percent. */
+    private static final int PROTECTED_PERCENT = 80;
+
+    /** Slots in each read buffer, a power of two. */
+    private static final int READ_BUFFER_SIZE = 32;
+
+    /** Mask on the write index of a read buffer that triggers a drain. */
+    private static final int DRAIN_MASK = READ_BUFFER_SIZE / 2 - 1;
+
+    /** Queue markers of a Node. */
+    private static final int NONE = 0;
+    private static final int WINDOW = 1;
+    private static final int PROBATION = 2;
+    private static final int PROTECTED = 3;
+
+    /**
+     * Cache storage, mapping keys to Nodes.
+     */
+    protected final ConcurrentMap cache = new ConcurrentHashMap(512, 0.5f, 30);
+
+    /**
+     * Runtime services, generally initialized by the
+     * <code>initialize()</code> method.
+     */
+    protected RuntimeServices rsvc = null;
+
+    /** Guards all the eviction policy state below. */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /** Maximum total weight, or 0 for an unbounded cache. */
+    private long maximum = 0;
+    private long windowMaximum;
+    private long protectedMaximum;
+
+    /** Whether entries weigh their estimated size, rather than 1. */
+    private boolean weighted = false;
+
+    private long size = 0;
+    private long windowSize = 0;
+    private long protectedSize = 0;
+
+    /** Entries evicted so far; only written under the lock. */
+    private volatile long evictions = 0;
+
+    private final AccessOrderQueue window = new AccessOrderQueue();
+    private final AccessOrderQueue probation = new AccessOrderQueue();
+    private final AccessOrderQueue protectedQueue = new AccessOrderQueue();
+
+    private FrequencySketch sketch;
+
+    private AtomicReferenceArray[] readBuffers;
+    private AtomicLong[] readCounts;
+    private int stripeMask;
+
+    /**
+     * @see ResourceCache#initialize(org.apache.velocity.runtime.RuntimeServices)
+     */
+    public void initialize( RuntimeServices rs )
+    {
+        rsvc = rs;
+
+        int maxSize =
+            rsvc.getInt(RuntimeConstants.RESOURCE_MANAGER_DEFAULTCACHE_SIZE, 89);
+        long maxBytes =
+            rsvc.getConfiguration().getLong(RuntimeConstants.RESOURCE_MANAGER_DEFAULTCACHE_BYTES, 0);
+        if (maxBytes > 0)
+        {
+            weighted = true;
+            maximum = maxBytes;
+        }
+        else if (maxSize > 0)
+        {
+            maximum = maxSize;
+        }
+
+        if (maximum > 0)
+        {
+            windowMaximum = Math.max(1, maximum * WINDOW_PERCENT / 100);
+            protectedMaximum = (maximum - windowMaximum) * PROTECTED_PERCENT / 100;
+
+            /*
+             * the sketch is sized by the number of entries; when weighing,
+             * assume entries of a few KB each
+             */
+            sketch = new FrequencySketch(weighted
+                ? (int) Math.min(Math.max(maximum / 4096, 16), 1 << 20)
+                : maxSize);
+
+            int stripes = ceilingPowerOfTwo(Runtime.getRuntime().availableProcessors());
+            stripeMask = stripes - 1;
+            readBuffers = new AtomicReferenceArray[stripes];
+            readCounts = new AtomicLong[stripes];
+            for (int i = 0; i < stripes; i++)
+            {
+                readBuffers[i] = new AtomicReferenceArray(READ_BUFFER_SIZE);
+                readCounts[i] = new AtomicLong();
+            }
+        }
+        rsvc.getLog().debug("ResourceCache: initialized ("+this.getClass()+") with "+
+               (maximum > 0 ? "a maximum of " + maximum + (weighted ? " bytes." : " entries.")
+                            : "no size limit."));
+    }
+
+    /**
+     * @see ResourceCache#get(Object)
+     */
+    public Resource get( Object key )
+    {
+        Node node = (Node) cache.get(key);
+        if (node == null)
+        {
+            return null;
+        }
+        if (maximum > 0)
+        {
+            recordRead(node);
+        }
+        return node.value;
+    }
+
+    /**
+     * @see ResourceCache#put(Object, Resource)
+     */
+    public Resource put( Object key, Resource value )
+    {
+        if (maximum <= 0)
+        {
+            Node prior = (Node) cache.put(key, new Node(key, value));
+            return prior == null ? null : prior.value;
+        }
+
+        evictionLock.lock();
+        try
+        {
+            drainReadBuffers();
+
+            Node node = (Node) cache.get(key);
+            if (node != null)
+            {
+                Resource old = node.value;
+                node.value = value;
+                reweigh(node, weigh(value));
+                onAccess(node);
+                evict();
+                return old;
+            }
+
+            node = new Node(key, value);
+            node.weight = weigh(value);
+            cache.put(key, node);
+            sketch.increment(key);
+
+            node.queue = WINDOW;
+            window.add(node);
+            windowSize += node.weight;
+            size += node.weight;
+
+            evict();
+            return null;
+        }
+        finally
+        {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @see ResourceCache#remove(Object)
+     */
+    public Resource remove( Object key )
+    {
+        if (maximum <= 0)
+        {
+            Node node = (Node) cache.remove(key);
+            return node == null ? null : node.value;
+        }
+
+        evictionLock.lock();
+        try
+        {
+            Node node = (Node) cache.remove(key);
+            if (node == null)
+            {
+                return null;
+            }
+            unlink(node);
+            return node.value;
+        }
+        finally
+        {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @see ResourceCache#enumerateKeys()
+     */
+    public Iterator enumerateKeys()
+    {
+        return cache.keySet().iterator();
+    }
+
+    /**
+     * @return number of entries evicted to keep the cache within its
+     *         maximum size
+     * @since 1.8
+     */
+    public long getEvictionCount()
+    {
+        return evictions;
+    }
+
+    /**
+     * Records a read in the buffer of the current thread's stripe, and
+     * replays that buffer if it is filling up and nobody else holds the
+     * policy lock.
+     */
+    private void recordRead(Node node)
+    {
+        int stripe = (int) Thread.currentThread().getId() & stripeMask;
+        long index = readCounts[stripe].getAndIncrement();
+        readBuffers[stripe].lazySet((int) index & (READ_BUFFER_SIZE - 1), node);
+
+        if ((index & DRAIN_MASK) == DRAIN_MASK && evictionLock.tryLock())
+        {
+            try
+            {
+                drainReadBuffer(stripe);
+            }
+            finally
+            {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private void drainReadBuffers()
+    {
+        for (int i = 0; i < readBuffers.length; i++)
+        {
+            drainReadBuffer(i);
+        }
+    }
+
+    private void drainReadBuffer(int stripe)
+    {
+        AtomicReferenceArray buffer = readBuffers[stripe];
+        for (int i = 0; i < READ_BUFFER_SIZE; i++)
+        {
+            Node node = (Node) buffer.getAndSet(i, null);
+            if (node != null)
+            {
+                onAccess(node);
+            }
+        }
+    }
+
+    /**
+     * Applies an access to the policy: bumps the frequency of the key and
+     * moves the node to the most recently used end of its queue, promoting
+     * it from probation to protected.
+     */
+    private void onAccess(Node node)
+    {
+        if (node.queue == NONE)
+        {
+            // evicted or removed since the read was recorded
+            return;
+        }
+
+        sketch.increment(node.key);
+
+        switch (node.queue)
+        {
+            case WINDOW:
+                window.moveToBack(node);
+                break;
+
+            case PROBATION:
+                probation.remove(node);
+                node.queue = PROTECTED;
+                protectedQueue.add(node);
+                protectedSize += node.weight;
+
+                while (protectedSize > protectedMaximum && protectedQueue.peek() != node)
+                {
+                    Node demoted = protectedQueue.poll();
+                    protectedSize -= demoted.weight;
+                    demoted.queue = PROBATION;
+                    probation.add(demoted);
+                }
+                break;
+
+            case PROTECTED:
+                protectedQueue.moveToBack(node);
+                break;
+        }
+    }
+
+    /**
+     * Moves the overflow of the window into probation, then evicts until
+     * the cache is within bounds, letting each entry coming from the
+     * window compete with the least recently used entry of probation.
+     */
+    private void evict()
+    {
+        int candidates = 0;
+        while (windowSize > windowMaximum)
+        {
+            Node node = window.poll();
+            windowSize -= node.weight;
+            node.queue = PROBATION;
+            probation.add(node);
+            candidates++;
+        }
+
+        while (size > maximum)
+        {
+            Node victim = probation.peek();
+            Node candidate = candidates > 0 ? probation.peekLast() : null;
+
+            if (victim == null)
+            {
+                // cannot happen with sane sizes, but never loop forever
+                victim = protectedQueue.peek() != null ? protectedQueue.peek() : window.peek();
+                evictNode(victim);
+            }
+            else if (candidate == null || candidate == victim)
+            {
+                evictNode(victim);
+                if (candidate != null)
+                {
+                    candidates--;
+                }
+            }
+            else if (sketch.frequency(candidate.key) > sketch.frequency(victim.key))
+            {
+                evictNode(victim);
+            }
+            else
+            {
+                evictNode(candidate);
+                candidates--;
+            }
+        }
+    }
+
+    private void evictNode(Node node)
+    {
+        unlink(node);
+        if (cache.remove(node.key, node))
+        {
+            evictions++;
+        }
+    }
+
+    private void unlink(Node node)
+    {
+        switch (node.queue)
+        {
+            case WINDOW:
+                window.remove(node);
+                windowSize -= node.weight;
+                break;
+
+            case PROBATION:
+                probation.remove(node);
+                break;
+
+            case PROTECTED:
+                protectedQueue.remove(node);
+                protectedSize -= node.weight;
+                break;
+
+            default:
+                return;
+        }
+        node.queue = NONE;
+        size -= node.weight;
+    }
+
+    /**
+     * @return the weight the given resource counts for against the maximum
+     */
+    private long weigh(Resource resource)
+    {
+        if (!weighted || resource == null)
+        {
+            return 1;
+        }
+        return Math.max(1, resource.getEstimatedSize());
+    }
+
+    /**
+     * Changes the weight of a node which is in the cache.
+     */
+    private void reweigh(Node node, long weight)
+    {
+        long delta = weight - node.weight;
+        node.weight = weight;
+        size += delta;
+        if (node.queue == WINDOW)
+        {
+            windowSize += delta;
+        }
+        else if (node.queue == PROTECTED)
+        {
+            protectedSize += delta;
+        }
+    }
+
+    private static int ceilingPowerOfTwo(int x)
+    {
+        int n = 1;
+        while (n < x)
+        {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    /**
+     * Cache entry. Apart from the value, all fields belong to the
+     * eviction policy and are guarded by its lock.
+     */
+    private static final class Node
+    {
+        final Object key;
+        volatile Resource value;
+
+        int queue = NONE;
+        long weight = 1;
+        Node prev;
+        Node next;
+
+        Node(Object key, Resource value)
+        {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Doubly linked list of Nodes threaded through the nodes themselves,
+     * least recently used first.
+     */
+    private static final class AccessOrderQueue
+    {
+        private final Node head = new Node(null, null);
+
+        AccessOrderQueue()
+        {
+            head.prev = head;
+            head.next = head;
+        }
+
+        void add(Node node)
+        {
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+        }
+
+        void remove(Node node)
+        {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+        }
+
+        void moveToBack(Node node)
+        {
+            remove(node);
+            add(node);
+        }
+
+        Node peek()
+        {
+            return head.next == head ? null : head.next;
+        }
+
+        Node peekLast()
+        {
+            return head.prev == head ? null : head.prev;
+        }
+
+        Node poll()
+        {
+            Node node = peek();
+            if (node != null)
+            {
+                remove(node);
+            }
+            return node;
+        }
+    }
+
+    /**
+     * Count-min sketch with four 4-bit counters per key, giving the
+     * approximate popularity of keys over the recent past. All counters
+     * are halved once the number of increments reaches ten times the
+     * cache capacity, so that formerly popular entries age out.
+     */
+    private static final class FrequencySketch
+    {
+        private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+            0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private static final long ONE_MASK = 0x1111111111111111L;
+
+        private final long[] table;
+        private final int tableMask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(int maximum)
+        {
+            int length = ceilingPowerOfTwo(Math.max(maximum, 16));
+            table = new long[length];
+            tableMask = length - 1;
+            sampleSize = maximum > Integer.MAX_VALUE / 10 ? Integer.MAX_VALUE : 10 * maximum;
+        }
+
+        int frequency(Object key)
+        {
+            int hash = spread(key.hashCode());
+            int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++)
+            {
+                int index = indexOf(hash, i);
+                int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(Object key)
+        {
+            int hash = spread(key.hashCode());
+            int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++)
+            {
+                added |= incrementAt(indexOf(hash, i), start + i);
+            }
+            if (added && ++additions >= sampleSize)
+            {
+                reset();
+            }
+        }
+
+        private boolean incrementAt(int i, int j)
+        {
+            int offset = j << 2;
+            long mask = 0xfL << offset;
+            if ((table[i] & mask) != mask)
+            {
+                table[i] += 1L << offset;
+                return true;
+            }
+            return false;
+        }
+
+        private void reset()
+        {
+            int odd = 0;
+            for (int i = 0; i < table.length; i++)
+            {
+                odd += Long.bitCount(table[i] & ONE_MASK);
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions = (additions - (odd >>> 2)) >>> 1;
+        }
+
+        private int indexOf(int item, int i)
+        {
+            long hash = (item + SEEDS[i]) * SEEDS[i];
+            hash += hash >>> 32;
+            return ((int) hash) & tableMask;
+        }
+
+        private static int spread(int x)
+        {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+}
@@ -73,6 +73,7 @@ public class ContentResource extends Resource
                 sw.write( buf, 0, len );
 
             setData(sw.toString());
+            setEstimatedSize(2L * sw.getBuffer().length());
 
             return true;
         }
@@ -0,0 +1,120 @@
+package org.apache.velocity.runtime.resource;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Outcome of loading a set of templates ahead of time, as returned by
+ * {@link org.apache.velocity.runtime.RuntimeInstance#precompileTemplates(java.util.Collection, int)}:
+ * how long each template took to load, read and parse, and why the
+ * others failed.
+ *
+ * @since 1.8
+ */
+public class PrecompileReport
+{
+    private final Map loadTimes = new HashMap();
+    private final Map failures = new HashMap();
+    private long elapsed = 0;
+
+    /**
+     * Records a template which was loaded successfully.
+     *
+     * @param templateName name of the template
+     * @param nanos time it took, in nanoseconds
+     */
+    public synchronized void loaded(String templateName, long nanos)
+    {
+        loadTimes.put(templateName, new Long(nanos));
+    }
+
+    /**
+     * Records a template which could not be loaded.
+     *
+     * @param templateName name of the template
+     * @param cause the exception it failed with
+     */
+    public synchronized void failed(String templateName, Throwable cause)
+    {
+        failures.put(templateName, cause);
+    }
+
+    /**
+     * @param nanos wall clock time the whole precompilation took, in nanoseconds
+     */
+    public synchronized void setElapsedTime(long nanos)
+    {
+        elapsed = nanos;
+    }
+
+    /**
+     * @return wall clock time the whole precompilation took, in nanoseconds
+     */
+    public synchronized long getElapsedTime()
+    {
+        return elapsed;
+    }
+
+    /**
+     * @return the time (as a Long, in nanoseconds) each successfully
+     *         loaded template took, by template name
+     */
+    public synchronized Map getLoadTimes()
+    {
+        return Collections.unmodifiableMap(new HashMap(loadTimes));
+    }
+
+    /**
+     * @return the exception each failed template was rejected with,
+     *         by template name
+     */
+    public synchronized Map getFailures()
+    {
+        return Collections.unmodifiableMap(new HashMap(failures));
+    }
+
+    /**
+     * @return number of templates loaded successfully
+     */
+    public synchronized int getLoadedCount()
+    {
+        return loadTimes.size();
+    }
+
+    /**
+     * @return number of templates which failed
+     */
+    public synchronized int getFailedCount()
+    {
+        return failures.size();
+    }
+
+    /**
+     * @return short summary, for logging
+     */
+    public synchronized String toString()
+    {
+        return "precompiled " + loadTimes.size() + " templates in " +
+            (elapsed / 1000000) + " ms, " + failures.size() + " failed";
+    }
+}
@@ -89,6 +89,16 @@ public abstract class Resource
      */
     protected int type;
 
+    /**
+     *  Rough estimate of the memory retained by this resource, in bytes
+     */
+    protected long estimatedSize = 0;
+
+    /**
+     *  Hash of the source as last read by process(), 0 if unknown
+     */
+    protected long contentHash = 0;
+
     /**
      *  Default constructor
      */
@@ -289,4 +299,38 @@ public abstract class Resource
     {
         return type;
     }
+
+    /**
+     * Returns a rough estimate of the memory retained by this resource
+     * once processed, in bytes. It is computed once by {@link #process()},
+     * and is what caches bounded by memory weigh the resource by.
+     * @return estimated size in bytes, or 0 if unknown
+     * @since 1.8
+     */
+    public long getEstimatedSize()
+    {
+        return estimatedSize;
+    }
+
+    /**
+     * Sets the estimated memory retained by this resource.
+     * @param estimatedSize size in bytes
+     * @since 1.8
+     */
+    public void setEstimatedSize(long estimatedSize)
+    {
+        this.estimatedSize = estimatedSize;
+    }
+
+    /**
+     * Returns a hash of the source this resource was last processed
+     * from. It is cheap to compute rather than collision proof, and only
+     * meant to tell a reload of identical content from a real change.
+     * @return the hash, or 0 if unknown
+     * @since 1.8
+     */
+    public long getContentHash()
+    {
+        return contentHash;
+    }
 }
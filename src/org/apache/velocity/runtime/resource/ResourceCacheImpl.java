@@ -22,6 +22,7 @@ package org.apache.velocity.runtime.resource;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.collections.map.LRUMap;
 import org.apache.velocity.runtime.RuntimeConstants;
@@ -37,6 +38,8 @@ import org.apache.velocity.util.MapFactory;
  * org.apache.velocity.runtime.RuntimeConstants#RESOURCE_MANAGER_DEFAULTCACHE_SIZE}
  * constant).  This property get be set to <code>0</code> or less for
  * a greedy, unbounded cache (the behavior from pre-v1.5).
+ * See {@link ConcurrentResourceCacheImpl} for an implementation
+ * that does not lock on lookups.
  *
  * @author <a href="mailto:geirm@apache.org">Geir Magnusson Jr.</a>
  * @author <a href="mailto:dlr@finemaltcoding.com">Daniel Rall</a>
@@ -55,6 +58,11 @@ public class ResourceCacheImpl implements ResourceCache
      */
     protected RuntimeServices rsvc = null;
 
+    /**
+     * Number of resources the LRU map has dropped to make room.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
     /**
      * @see ResourceCache#initialize(org.apache.velocity.runtime.RuntimeServices)
      */
@@ -68,7 +76,14 @@ public class ResourceCacheImpl implements ResourceCache
         {
             // Create a whole new Map here to avoid hanging on to a
             // handle to the unsynch'd LRUMap for our lifetime.
-            Map lruCache = Collections.synchronizedMap(new LRUMap(maxSize));
+            Map lruCache = Collections.synchronizedMap(new LRUMap(maxSize)
+            {
+                protected boolean removeLRU(LinkEntry entry)
+                {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+            });
             lruCache.putAll(cache);
             cache = lruCache;
         }
@@ -107,5 +122,15 @@ public class ResourceCacheImpl implements ResourceCache
     {
         return cache.keySet().iterator();
     }
+
+    /**
+     * @return number of resources dropped to keep the cache within
+     *         <code>resource.manager.defaultcache.size</code>
+     * @since 1.8
+     */
+    public long getEvictionCount()
+    {
+        return evictions.get();
+    }
 }
 
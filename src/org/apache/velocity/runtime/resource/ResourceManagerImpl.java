@@ -19,21 +19,40 @@ package org.apache.velocity.runtime.resource;
  * under the License.
  */
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.management.ObjectName;
 
 import org.apache.commons.collections.ExtendedProperties;
+import org.apache.commons.collections.map.LRUMap;
+import org.apache.velocity.Template;
 import org.apache.velocity.exception.ParseErrorException;
 import org.apache.velocity.exception.ResourceNotFoundException;
 import org.apache.velocity.exception.VelocityException;
 import org.apache.velocity.runtime.RuntimeConstants;
 import org.apache.velocity.runtime.RuntimeServices;
 import org.apache.velocity.runtime.log.Log;
+import org.apache.velocity.runtime.resource.loader.ResourceChangeListener;
 import org.apache.velocity.runtime.resource.loader.ResourceLoader;
 import org.apache.velocity.runtime.resource.loader.ResourceLoaderFactory;
 import org.apache.velocity.util.ClassUtils;
+import org.apache.velocity.util.DaemonThreadFactory;
 import org.apache.velocity.util.StringUtils;
 
 
@@ -88,6 +107,51 @@ public class ResourceManagerImpl
     /** Logging. */
     protected Log log = null;
 
+    /** Loads currently in progress, keyed like the cache, so concurrent misses share one parse. */
+    private final ConcurrentMap pendingLoads = new ConcurrentHashMap();
+
+    /** Background threads doing modification checks, if resource.manager.refresh.async is on. */
+    private ExecutorService refreshExecutor = null;
+
+    /** Threads asking all loaders at once for a resource, if resource.manager.probe.parallel is on. */
+    private ExecutorService probeExecutor = null;
+
+    /**
+     * Keys of the resources no loader could find, mapped to the time
+     * (as a Long) until which that answer is trusted. Null if disabled.
+     */
+    private Map notFoundCache = null;
+
+    /** How long a missing resource is remembered, in milliseconds. */
+    private long notFoundTTL = 0;
+
+    /** Parsed templates kept on disk, if resource.manager.snapshot.directory is set. */
+    private TemplateSnapshotCache snapshotCache = null;
+
+    /** Counters and timers of this resource manager. */
+    private ResourceManagerStatistics statistics = null;
+
+    /** Name the statistics are registered with JMX under, if they are. */
+    private ObjectName statisticsName = null;
+
+    /**
+     * Resource names mapped to the LoaderIndexEntry recording which loader
+     * provided them, least recently used first. Null if disabled.
+     */
+    private Map loaderIndex = null;
+
+    /** How long a loader index entry is trusted, in milliseconds, or -1 for ever. */
+    private long loaderIndexTTL = 0;
+
+    /** Drops the resources our loaders report as changed. */
+    private final ResourceChangeListener changeListener = new ResourceChangeListener()
+    {
+        public void resourceChanged(ResourceLoader loader, String resourceName)
+        {
+            invalidateResource(resourceName);
+        }
+    };
+
     /**
      * Initialize the ResourceManager.
      *
@@ -141,6 +205,7 @@ public class ResourceManagerImpl
 
             resourceLoader.commonInit(rsvc, configuration);
             resourceLoader.init(configuration);
+            resourceLoader.addResourceChangeListener(changeListener);
             resourceLoaders.add(resourceLoader);
         }
 
@@ -150,6 +215,68 @@ public class ResourceManagerImpl
 
         logWhenFound = rsvc.getBoolean(RuntimeConstants.RESOURCE_MANAGER_LOGWHENFOUND, true);
 
+        /*
+         *  should modification checks be taken off the request threads?
+         */
+
+        if (rsvc.getBoolean(RuntimeConstants.RESOURCE_MANAGER_REFRESH_ASYNC, false))
+        {
+            int threads = rsvc.getInt(RuntimeConstants.RESOURCE_MANAGER_REFRESH_THREADS, 1);
+            refreshExecutor = Executors.newFixedThreadPool(Math.max(threads, 1),
+                new DaemonThreadFactory("resource-refresh"));
+            log.debug("ResourceManager : modification checks will run on " +
+                      Math.max(threads, 1) + " background thread(s)");
+        }
+
+        /*
+         *  should the loaders be asked for a new resource all at once?
+         */
+
+        if (resourceLoaders.size() > 1 &&
+            rsvc.getBoolean(RuntimeConstants.RESOURCE_MANAGER_PROBE_PARALLEL, false))
+        {
+            int threads = rsvc.getInt(RuntimeConstants.RESOURCE_MANAGER_PROBE_THREADS, 4);
+            probeExecutor = Executors.newFixedThreadPool(Math.max(threads, 1),
+                new DaemonThreadFactory("resource-probe"));
+            log.debug("ResourceManager : resource loaders will be probed on " +
+                      Math.max(threads, 1) + " background thread(s)");
+        }
+
+        /*
+         *  should missing resources be remembered?
+         */
+
+        int notFoundSize = rsvc.getInt(RuntimeConstants.RESOURCE_MANAGER_NOTFOUND_CACHE_SIZE, 0);
+        if (notFoundSize > 0)
+        {
+            notFoundCache = Collections.synchronizedMap(new LRUMap(notFoundSize));
+            notFoundTTL = 1000L * rsvc.getInt(RuntimeConstants.RESOURCE_MANAGER_NOTFOUND_CACHE_TTL, 60);
+        }
+
+        /*
+         *  should we remember which loader provides which resource?
+         */
+
+        int indexTTL = rsvc.getInt(RuntimeConstants.RESOURCE_MANAGER_LOADER_INDEX_TTL, 0);
+        int indexSize = rsvc.getInt(RuntimeConstants.RESOURCE_MANAGER_LOADER_INDEX_SIZE, 1000);
+        if (indexTTL != 0 && indexSize > 0)
+        {
+            loaderIndex = Collections.synchronizedMap(new LRUMap(indexSize));
+            loaderIndexTTL = indexTTL < 0 ? -1 : 1000L * indexTTL;
+        }
+
+        /*
+         *  should parsed templates be kept on disk?
+         */
+
+        String snapshotDirectory = rsvc.getString(RuntimeConstants.RESOURCE_MANAGER_SNAPSHOT_DIRECTORY);
+        if (org.apache.commons.lang.StringUtils.isNotBlank(snapshotDirectory))
+        {
+            snapshotCache = new TemplateSnapshotCache(rsvc, new File(snapshotDirectory.trim()));
+            log.debug("ResourceManager : parsed templates will be kept in " +
+                      snapshotCache.getDirectory());
+        }
+
         /*
          *  now, is a global cache specified?
          */
@@ -203,9 +330,78 @@ public class ResourceManagerImpl
 
         globalCache.initialize(rsvc);
 
+        statistics = new ResourceManagerStatistics(globalCache);
+        if (rsvc.getBoolean(RuntimeConstants.RESOURCE_MANAGER_JMX_ENABLED, false))
+        {
+            registerStatistics();
+        }
+
         log.trace("Default ResourceManager initialization complete.");
     }
 
+    /**
+     * Registers the statistics with the platform MBean server, under a name
+     * which tells apart the resource managers of several engines.
+     */
+    private void registerStatistics()
+    {
+        try
+        {
+            ObjectName name = new ObjectName("org.apache.velocity:type=ResourceManager,id=" +
+                Integer.toHexString(System.identityHashCode(this)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, name);
+            statisticsName = name;
+            log.debug("ResourceManager : statistics registered as " + name);
+        }
+        catch (Exception e)
+        {
+            log.warn("ResourceManager : unable to register statistics with JMX", e);
+        }
+    }
+
+    /**
+     * Unregisters the statistics from JMX, stops the background threads
+     * and closes the resource loaders.
+     * Called by {@link org.apache.velocity.runtime.RuntimeInstance#shutdown()}.
+     * @since 1.8
+     */
+    public synchronized void shutdown()
+    {
+        if (statisticsName != null)
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(statisticsName);
+            }
+            catch (Exception e)
+            {
+                log.warn("ResourceManager : unable to unregister statistics from JMX", e);
+            }
+            statisticsName = null;
+        }
+        if (refreshExecutor != null)
+        {
+            refreshExecutor.shutdown();
+        }
+        if (probeExecutor != null)
+        {
+            probeExecutor.shutdown();
+        }
+        for (Iterator i = resourceLoaders.iterator(); i.hasNext(); )
+        {
+            ((ResourceLoader) i.next()).close();
+        }
+    }
+
+    /**
+     * @return the counters and timers of this resource manager
+     * @since 1.8
+     */
+    public ResourceManagerStatistics getStatistics()
+    {
+        return statistics;
+    }
+
     /**
      * This will produce a List of Hashtables, each hashtable contains the intialization info for a particular resource loader. This
      * Hashtable will be passed in when initializing the the template loader.
@@ -290,33 +486,60 @@ public class ResourceManagerImpl
          * (static content from #include) with a Template.
          */
 
-        String resourceKey = resourceType + resourceName;
+        final String resourceKey = resourceType + resourceName;
         Resource resource = globalCache.get(resourceKey);
 
         if (resource != null)
         {
+            statistics.hit();
             try
             {
                 // avoids additional method call to refreshResource
-                if (resource.requiresChecking())
+                if (resource.requiresChecking() && refreshExecutor != null)
                 {
                     /*
-                     * both loadResource() and refreshResource() now return
+                     * serve what we have, and let the background
+                     * threads find out whether it is still current
+                     */
+                    scheduleRefresh(resourceKey, resource, encoding);
+                }
+                else if (resource.requiresChecking())
+                {
+                    /*
+                     * both loadResource() and refreshResource() return
                      * a new Resource instance when they are called
-                     * (put in the cache when appropriate) in order to allow
-                     * several threads to parse the same template simultaneously.
-                     * It is redundant work and will cause more garbage collection but the
-                     * benefit is that it allows concurrent parsing and processing
-                     * without race conditions when multiple requests try to
-                     * refresh/load the same template at the same time.
+                     * (put in the cache when appropriate) so that a
+                     * template which is in use in another thread is
+                     * never partially overwritten.
                      *
-                     * Another alternative is to limit template parsing/retrieval
-                     * so that only one thread can parse each template at a time
-                     * but that creates a scalability bottleneck.
+                     * Concurrent refreshes of the same resource are
+                     * collapsed into one: the first thread checks and
+                     * re-parses, the others wait for its result. Other
+                     * resources are not blocked by this.
                      *
                      * See VELOCITY-606, VELOCITY-595 and VELOCITY-24
                      */
-                    resource = refreshResource(resource, encoding);
+                    final Resource stale = resource;
+                    resource = loadOnce(resourceKey, new LoadTask()
+                    {
+                        public Resource load()
+                        {
+                            /*
+                             * another thread may have refreshed it
+                             * while we were waiting to get here
+                             */
+                            Resource current = globalCache.get(resourceKey);
+                            if (current == null)
+                            {
+                                current = stale;
+                            }
+                            if (!current.requiresChecking())
+                            {
+                                return current;
+                            }
+                            return refreshResource(current, encoding);
+                        }
+                    });
                 }
             }
             catch (ResourceNotFoundException rnfe)
@@ -342,19 +565,49 @@ public class ResourceManagerImpl
         	    throw re;
             }
         }
+        else if (isKnownMissing(resourceKey))
+        {
+            statistics.miss();
+            statistics.notFound();
+            if (log.isDebugEnabled())
+            {
+                log.debug("ResourceManager : resource '" + resourceName +
+                          "' was recently not found in any resource loader.");
+            }
+            throw new ResourceNotFoundException("Unable to find resource '" + resourceName + "'");
+        }
         else
         {
+            statistics.miss();
             try
             {
                 /*
-                 *  it's not in the cache, so load it.
-                 */    
-                resource = loadResource(resourceName, resourceType, encoding);
-
-                if (resource.getResourceLoader().isCachingOn())
+                 *  it's not in the cache, so load it. Threads missing
+                 *  the same resource at the same time share one load.
+                 */
+                resource = loadOnce(resourceKey, new LoadTask()
                 {
-                    globalCache.put(resourceKey, resource);
-                }
+                    public Resource load()
+                    {
+                        /*
+                         * the previous load may have finished between
+                         * our cache miss and getting here
+                         */
+                        Resource cached = globalCache.get(resourceKey);
+                        if (cached != null)
+                        {
+                            return cached;
+                        }
+
+                        Resource loaded = loadResource(resourceName, resourceType, encoding);
+
+                        if (loaded.getResourceLoader().isCachingOn())
+                        {
+                            globalCache.put(resourceKey, loaded);
+                        }
+                        return loaded;
+                    }
+                });
             }
             catch (ResourceNotFoundException rnfe)
             {
@@ -377,6 +630,128 @@ public class ResourceManagerImpl
         return resource;
     }
 
+    /**
+     * Runs the given load for the given resource key, making sure that
+     * concurrent callers asking for the same key share a single load
+     * instead of each reading and parsing the resource themselves. The
+     * first caller does the work; the others block until it completes
+     * and then receive its result or rethrow its exception.
+     *
+     * @param  resourceKey  The cache key of the resource being loaded.
+     * @param  task  The work to perform if no load is already in progress.
+     * @return  Resource produced by the task.
+     * @since 1.8
+     */
+    protected Resource loadOnce(Object resourceKey, LoadTask task)
+    {
+        PendingLoad pending = new PendingLoad();
+        PendingLoad existing = (PendingLoad) pendingLoads.putIfAbsent(resourceKey, pending);
+
+        if (existing != null)
+        {
+            /*
+             * a resource which (indirectly) needs itself while being
+             * loaded would wait on its own load forever, so just let
+             * the owning thread through
+             */
+            if (existing.owner == Thread.currentThread())
+            {
+                return task.load();
+            }
+            return existing.await(resourceKey);
+        }
+
+        Resource resource = null;
+        RuntimeException failure = null;
+        try
+        {
+            resource = task.load();
+            return resource;
+        }
+        catch (RuntimeException re)
+        {
+            failure = re;
+            throw re;
+        }
+        finally
+        {
+            if (pending.invalidated)
+            {
+                globalCache.remove(resourceKey);
+            }
+            pendingLoads.remove(resourceKey);
+            pending.complete(resource, failure);
+        }
+    }
+
+    /**
+     * Hands the modification check of a cached resource to the background
+     * refresh threads. The caller keeps using the resource it has; if the
+     * source turns out to be modified, the re-parsed resource replaces it
+     * in the cache once it is ready. If the re-parse fails, the error is
+     * logged and the previous version stays in service; if the resource is
+     * gone, it is dropped from the cache so that the next request reports it.
+     *
+     * @param  resourceKey  The cache key of the resource.
+     * @param  resource  The cached resource which is due for a check.
+     * @param  encoding  The character encoding requested for the resource.
+     * @since 1.8
+     */
+    protected void scheduleRefresh(final Object resourceKey, final Resource resource,
+                                   final String encoding)
+    {
+        /*
+         * push back the next check right away, so that the requests
+         * arriving while the check is queued don't queue it again
+         */
+        resource.touch();
+
+        refreshExecutor.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    Resource refreshed = loadOnce(resourceKey, new LoadTask()
+                    {
+                        public Resource load()
+                        {
+                            return refreshResource(resource, encoding);
+                        }
+                    });
+
+                    /*
+                     * a resource found in a higher priority loader
+                     * comes back without having been cached
+                     */
+                    if (refreshed != resource && refreshed.getResourceLoader().isCachingOn())
+                    {
+                        globalCache.put(resourceKey, refreshed);
+                    }
+                }
+                catch (ResourceNotFoundException rnfe)
+                {
+                    if (globalCache.get(resourceKey) == resource)
+                    {
+                        globalCache.remove(resourceKey);
+                    }
+                    log.debug("ResourceManager : '" + resource.getName() +
+                              "' can no longer be found, removed it from the cache");
+                }
+                catch (ParseErrorException pee)
+                {
+                    log.error("ResourceManager : modified resource '" + resource.getName() +
+                              "' could not be parsed, keeping the previous version", pee);
+                }
+                catch (RuntimeException re)
+                {
+                    log.error("ResourceManager : background refresh of '" +
+                              resource.getName() + "' failed", re);
+                }
+            }
+        });
+    }
+
     /**
      * Create a new Resource of the specified type.
      *
@@ -410,6 +785,7 @@ public class ResourceManagerImpl
         resource.setRuntimeServices(rsvc);
         resource.setName(resourceName);
         resource.setEncoding(encoding);
+        useSnapshotCache(resource);
 
         /*
          * Now we have to try to find the appropriate
@@ -421,9 +797,44 @@ public class ResourceManagerImpl
 
         long howOldItWas = 0;
 
-        for (Iterator it = resourceLoaders.iterator(); it.hasNext();)
+        /*
+         *  if we know which loader has it, ask that one first and
+         *  only fall back to the others if it no longer does
+         */
+        List loaders = resourceLoaders;
+        ResourceLoader indexed = getIndexedLoader(resourceName);
+        if (indexed != null)
+        {
+            loaders = new ArrayList(resourceLoaders.size());
+            loaders.add(indexed);
+            for (Iterator it = resourceLoaders.iterator(); it.hasNext();)
+            {
+                Object loader = it.next();
+                if (loader != indexed)
+                {
+                    loaders.add(loader);
+                }
+            }
+        }
+
+        /*
+         *  otherwise, while we try the first loader, the others may
+         *  be asked all at once whether they have it, so that only
+         *  the one which does needs to read and parse it
+         */
+        Future[] probes = null;
+        if (indexed == null && probeExecutor != null)
+        {
+            probes = startProbes(resourceName);
+        }
+
+        for (int i = 0; i < loaders.size(); i++)
         {
-            ResourceLoader resourceLoader = (ResourceLoader) it.next();
+            ResourceLoader resourceLoader = (ResourceLoader) loaders.get(i);
+            if (probes != null && i > 0 && !probeResult(probes, i, resourceName))
+            {
+                continue;
+            }
             resource.setResourceLoader(resourceLoader);
 
             /*
@@ -431,6 +842,7 @@ public class ResourceManagerImpl
              *  as that is ok in our new multi-loader environment
              */
 
+            long start = System.nanoTime();
             try
             {
 
@@ -464,13 +876,28 @@ public class ResourceManagerImpl
                  *  multi-loader environment
                  */
             }
+            finally
+            {
+                statistics.loaderCall(resourceLoader.getClassName(), loaderTime(resource, start));
+            }
         }
 
+        /*
+         *  the answers of lower priority loaders no longer matter
+         */
+        cancelProbes(probes);
+
         /*
          * Return null if we can't find a resource.
          */
         if (resource.getData() == null)
         {
+            if (loaderIndex != null)
+            {
+                loaderIndex.remove(resourceName);
+            }
+            statistics.notFound();
+            rememberMissing(resourceType + resourceName);
             throw new ResourceNotFoundException("Unable to find resource '" + resourceName + "'");
         }
 
@@ -480,12 +907,40 @@ public class ResourceManagerImpl
 
         resource.setLastModified(howOldItWas);
         resource.setModificationCheckInterval(resource.getResourceLoader().getModificationCheckInterval());
+        indexLoader(resourceName, resource.getResourceLoader());
 
         resource.touch();
+        statistics.loaded(resource);
 
         return resource;
     }
 
+    /**
+     * Time spent in the resource loader since start, which is the time
+     * the resource took to process minus what went into parsing it.
+     */
+    private static long loaderTime(Resource resource, long start)
+    {
+        long elapsed = System.nanoTime() - start;
+        if (resource instanceof Template && resource.getData() != null)
+        {
+            elapsed -= ((Template) resource).getParseTime();
+        }
+        return elapsed;
+    }
+
+    /**
+     * Hands the on-disk cache of parsed templates, if any, to a template
+     * about to be processed.
+     */
+    private void useSnapshotCache(Resource resource)
+    {
+        if (snapshotCache != null && resource instanceof Template)
+        {
+            ((Template) resource).setSnapshotCache(snapshotCache);
+        }
+    }
+
     /**
      * Takes an existing resource, and 'refreshes' it. This generally means that the source of the resource is checked for changes
      * according to some cache/check algorithm and if the resource changed, then the resource data is reloaded and re-parsed.
@@ -526,7 +981,11 @@ public class ResourceManagerImpl
             }
         }
 
-        if (resource.isSourceModified())
+        long checkStart = System.nanoTime();
+        boolean modified = resource.isSourceModified();
+        statistics.loaderCall(loader.getClassName(), System.nanoTime() - checkStart);
+
+        if (modified)
         {
             /*
              *  now check encoding info.  It's possible that the newly declared
@@ -563,11 +1022,35 @@ public class ResourceManagerImpl
             newResource.setRuntimeServices(rsvc);
             newResource.setName(resource.getName());
             newResource.setEncoding(resource.getEncoding());
+            useSnapshotCache(newResource);
             newResource.setResourceLoader(loader);
             newResource.setModificationCheckInterval(loader.getModificationCheckInterval());
+            if (newResource instanceof Template && resource instanceof Template)
+            {
+                ((Template) newResource).setPrevious((Template) resource);
+            }
+
+            long start = System.nanoTime();
+            try
+            {
+                newResource.process();
+            }
+            finally
+            {
+                statistics.loaderCall(loader.getClassName(), loaderTime(newResource, start));
+            }
+
+            if (newResource.getData() == resource.getData())
+            {
+                /*
+                 *  only the date changed, so keep what we have
+                 */
+                resource.setLastModified(howOldItWas);
+                return resource;
+            }
 
-            newResource.process();
             newResource.setLastModified(howOldItWas);
+            statistics.reloaded(newResource);
             resource = newResource;
 
             globalCache.put(resourceKey, newResource);
@@ -575,6 +1058,100 @@ public class ResourceManagerImpl
         return resource;
     }
 
+    /**
+     * Drops everything cached about the named resource, of any type, so
+     * that the next request for it goes back to the resource loaders. A
+     * load of the resource which is in progress is not cached either, as
+     * it may have read the resource before it changed.
+     *
+     * @param  resourceName  The name of the resource.
+     * @since 1.8
+     */
+    public void invalidateResource(String resourceName)
+    {
+        String[] keys = new String[] {
+            RESOURCE_TEMPLATE + resourceName,
+            RESOURCE_CONTENT + resourceName };
+
+        for (int i = 0; i < keys.length; i++)
+        {
+            PendingLoad pending = (PendingLoad) pendingLoads.get(keys[i]);
+            if (pending != null)
+            {
+                pending.invalidated = true;
+            }
+            globalCache.remove(keys[i]);
+            if (notFoundCache != null)
+            {
+                notFoundCache.remove(keys[i]);
+            }
+        }
+        if (loaderIndex != null)
+        {
+            loaderIndex.remove(resourceName);
+        }
+    }
+
+    /**
+     * Forgets that the given resource could not be found, so that the next
+     * request for it asks the resource loaders again. Call this when a
+     * resource has been added behind Velocity's back and should be picked
+     * up before <code>resource.manager.notfound.cache.ttl</code> runs out.
+     *
+     * @param  resourceName  The name of the resource.
+     * @param  resourceType  The type of resource (<code>RESOURCE_TEMPLATE</code>, <code>RESOURCE_CONTENT</code>, etc.).
+     * @since 1.8
+     */
+    public void forgetMissing(String resourceName, int resourceType)
+    {
+        if (notFoundCache != null)
+        {
+            notFoundCache.remove(resourceType + resourceName);
+        }
+    }
+
+    /**
+     * Forgets all the resources which could not be found.
+     * @since 1.8
+     */
+    public void forgetAllMissing()
+    {
+        if (notFoundCache != null)
+        {
+            notFoundCache.clear();
+        }
+    }
+
+    /**
+     * @return true if the given resource was recently found in no loader
+     */
+    private boolean isKnownMissing(String resourceKey)
+    {
+        if (notFoundCache == null)
+        {
+            return false;
+        }
+        Long until = (Long) notFoundCache.get(resourceKey);
+        if (until == null)
+        {
+            return false;
+        }
+        if (System.currentTimeMillis() >= until.longValue())
+        {
+            notFoundCache.remove(resourceKey);
+            return false;
+        }
+        return true;
+    }
+
+    private void rememberMissing(String resourceKey)
+    {
+        if (notFoundCache != null)
+        {
+            notFoundCache.put(resourceKey, new Long(System.currentTimeMillis() + notFoundTTL));
+        }
+    }
+
     /**
      * Gets the named resource. Returned class type corresponds to specified type (i.e. <code>Template</code> to <code>
      * RESOURCE_TEMPLATE</code>).
@@ -617,21 +1194,268 @@ public class ResourceManagerImpl
         return loader.getClass().toString();
     }
 
+    /**
+     * Lists the names of the resources the resource loaders can supply.
+     * Loaders which cannot list their resources contribute nothing.
+     *
+     * @return names of the resources, in the order of the loaders
+     * @see ResourceLoader#listResources()
+     * @since 1.8
+     */
+    public Collection listResources()
+    {
+        Collection names = new LinkedHashSet();
+        for (Iterator i = resourceLoaders.iterator(); i.hasNext(); )
+        {
+            ResourceLoader loader = (ResourceLoader) i.next();
+            Collection loaderNames = loader.listResources();
+            if (loaderNames != null)
+            {
+                names.addAll(loaderNames);
+            }
+            else if (log.isDebugEnabled())
+            {
+                log.debug("ResourceManager : " + loader.getClassName() +
+                          " cannot list its resources, skipping it");
+            }
+        }
+        return names;
+    }
+
     /**
      * Returns the first {@link ResourceLoader} in which the specified
      * resource exists.
      */
     private ResourceLoader getLoaderForResource(String resourceName)
     {
-        for (Iterator i = resourceLoaders.iterator(); i.hasNext(); )
+        ResourceLoader indexed = getIndexedLoader(resourceName);
+        if (indexed != null)
         {
-            ResourceLoader loader = (ResourceLoader)i.next();
-            if (loader.resourceExists(resourceName))
+            /*
+             *  the index only tells which loader to ask; the resource
+             *  may have gone since
+             */
+            if (probe(indexed, resourceName))
             {
-                return loader;
+                return indexed;
             }
+            loaderIndex.remove(resourceName);
+        }
+
+        Future[] probes = probeExecutor != null ? startProbes(resourceName) : null;
+        try
+        {
+            for (int i = 0; i < resourceLoaders.size(); i++)
+            {
+                ResourceLoader loader = (ResourceLoader)resourceLoaders.get(i);
+                boolean exists = (probes != null && i > 0)
+                    ? probeResult(probes, i, resourceName)
+                    : loader.resourceExists(resourceName);
+                if (exists)
+                {
+                    indexLoader(resourceName, loader);
+                    return loader;
+                }
+            }
+        }
+        finally
+        {
+            cancelProbes(probes);
         }
         return null;
     }
 
+    /**
+     * Asks every loader but the first, in the background, whether it has
+     * the named resource; the caller is meant to try the first one itself
+     * meanwhile. Looking through the loaders in priority order with
+     * {@link #probeResult} then waits for the slowest of them rather than
+     * for all of them in turn.
+     *
+     * @return the answers, indexed like the loaders
+     */
+    private Future[] startProbes(final String resourceName)
+    {
+        Future[] probes = new Future[resourceLoaders.size()];
+        for (int i = 1; i < probes.length; i++)
+        {
+            final ResourceLoader loader = (ResourceLoader) resourceLoaders.get(i);
+            probes[i] = probeExecutor.submit(new Callable()
+            {
+                public Object call()
+                {
+                    return Boolean.valueOf(probe(loader, resourceName));
+                }
+            });
+        }
+        return probes;
+    }
+
+    /**
+     * Waits for the answer of the loader at the given index. A loader
+     * whose probe failed is taken not to have the resource.
+     */
+    private boolean probeResult(Future[] probes, int index, String resourceName)
+    {
+        try
+        {
+            return ((Boolean) probes[index].get()).booleanValue();
+        }
+        catch (ExecutionException ee)
+        {
+            log.debug("ResourceManager : probing " +
+                      ((ResourceLoader) resourceLoaders.get(index)).getClassName() +
+                      " for '" + resourceName + "' failed", ee.getCause());
+            return false;
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new VelocityException("Interrupted while looking for resource '" +
+                                        resourceName + "'", ie);
+        }
+    }
+
+    /**
+     * Cancels the probes still running.
+     */
+    private static void cancelProbes(Future[] probes)
+    {
+        if (probes != null)
+        {
+            for (int i = 1; i < probes.length; i++)
+            {
+                probes[i].cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Asks a single loader whether it has the named resource, and times
+     * the question.
+     */
+    private boolean probe(ResourceLoader loader, String resourceName)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return loader.resourceExists(resourceName);
+        }
+        finally
+        {
+            statistics.loaderCall(loader.getClassName(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Returns the loader which last provided the named resource, if
+     * that is recent enough to be trusted.
+     */
+    private ResourceLoader getIndexedLoader(String resourceName)
+    {
+        if (loaderIndex == null)
+        {
+            return null;
+        }
+
+        LoaderIndexEntry entry = (LoaderIndexEntry) loaderIndex.get(resourceName);
+        if (entry == null)
+        {
+            return null;
+        }
+        if (entry.expires != -1 && entry.expires < System.currentTimeMillis())
+        {
+            loaderIndex.remove(resourceName, entry);
+            return null;
+        }
+        return entry.loader;
+    }
+
+    /**
+     * Records which loader provided the named resource.
+     */
+    private void indexLoader(String resourceName, ResourceLoader loader)
+    {
+        if (loaderIndex != null)
+        {
+            long expires = loaderIndexTTL < 0 ? -1 : System.currentTimeMillis() + loaderIndexTTL;
+            loaderIndex.put(resourceName, new LoaderIndexEntry(loader, expires));
+        }
+    }
+
+    /**
+     * The loader known to provide a resource, and until when that is
+     * trusted (-1 meaning until the resource changes).
+     */
+    private static final class LoaderIndexEntry
+    {
+        final ResourceLoader loader;
+        final long expires;
+
+        LoaderIndexEntry(ResourceLoader loader, long expires)
+        {
+            this.loader = loader;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * A unit of loading work run through {@link ResourceManagerImpl#loadOnce}.
+     * @since 1.8
+     */
+    protected interface LoadTask
+    {
+        /**
+         * @return the loaded (or refreshed) Resource
+         */
+        Resource load();
+    }
+
+    /**
+     * Rendezvous point for the threads waiting on a load which is
+     * in progress in another thread.
+     */
+    private static final class PendingLoad
+    {
+        private final Thread owner = Thread.currentThread();
+        private volatile boolean invalidated = false;
+        private boolean done = false;
+        private Resource resource;
+        private RuntimeException failure;
+
+        synchronized void complete(Resource resource, RuntimeException failure)
+        {
+            this.resource = resource;
+            this.failure = failure;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized Resource await(Object resourceKey)
+        {
+            while (!done)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new VelocityException("Interrupted while waiting for resource '"
+                        + resourceKey + "' to be loaded", ie);
+                }
+            }
+            if (failure != null)
+            {
+                throw failure;
+            }
+            if (resource == null)
+            {
+                /* the loading thread died with an Error */
+                throw new VelocityException("Loading of resource '" + resourceKey + "' failed");
+            }
+            return resource;
+        }
+    }
 }
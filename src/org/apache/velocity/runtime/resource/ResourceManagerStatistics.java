@@ -0,0 +1,322 @@
+package org.apache.velocity.runtime.resource;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.velocity.Template;
+
+/**
+ * Counters and timers kept by {@link ResourceManagerImpl}: how often
+ * lookups hit the resource cache, how many resources were loaded, reloaded
+ * and evicted, how long templates take to parse and how much time is spent
+ * in each resource loader. These are what
+ * <code>resource.manager.defaultcache.size</code> and the loaders'
+ * <code>modificationCheckInterval</code> should be sized from.
+ *
+ * The counters updated on every lookup are striped, so keeping them costs
+ * next to nothing under contention; the timers are only updated when a
+ * resource is actually loaded or checked.
+ *
+ * @since 1.8
+ */
+public class ResourceManagerStatistics implements ResourceManagerStatisticsMBean
+{
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final ResourceCache cache;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder notFound = new LongAdder();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+    private final AtomicLong parseCount = new AtomicLong();
+    private final AtomicLong parseNanos = new AtomicLong();
+
+    /** Template name to the duration of its last parse (a Long, in nanoseconds). */
+    private final ConcurrentMap parseTimes = new ConcurrentHashMap();
+
+    /** Loader class name to its LoaderTiming. */
+    private final ConcurrentMap loaderTimings = new ConcurrentHashMap();
+
+    /** Evictions the cache had counted at the last reset(). */
+    private volatile long evictionBase = 0;
+
+    /**
+     * @param cache the cache of the resource manager, asked for its evictions
+     */
+    public ResourceManagerStatistics(ResourceCache cache)
+    {
+        this.cache = cache;
+    }
+
+    /**
+     * Records a lookup served from the cache.
+     */
+    public void hit()
+    {
+        hits.increment();
+    }
+
+    /**
+     * Records a lookup which did not find the resource in the cache.
+     */
+    public void miss()
+    {
+        misses.increment();
+    }
+
+    /**
+     * Records a lookup of a resource no loader could find.
+     */
+    public void notFound()
+    {
+        notFound.increment();
+    }
+
+    /**
+     * Records a resource loaded because it was not cached.
+     *
+     * @param resource the resource
+     */
+    public void loaded(Resource resource)
+    {
+        loads.incrementAndGet();
+        parsed(resource);
+    }
+
+    /**
+     * Records a cached resource loaded again because its source changed.
+     *
+     * @param resource the new version of the resource
+     */
+    public void reloaded(Resource resource)
+    {
+        reloads.incrementAndGet();
+        parsed(resource);
+    }
+
+    private void parsed(Resource resource)
+    {
+        if (resource instanceof Template)
+        {
+            long nanos = ((Template) resource).getParseTime();
+            parseCount.incrementAndGet();
+            parseNanos.addAndGet(nanos);
+            parseTimes.put(resource.getName(), new Long(nanos));
+        }
+    }
+
+    /**
+     * Records time spent in a resource loader.
+     *
+     * @param loaderName class name of the loader
+     * @param nanos time spent, in nanoseconds
+     */
+    public void loaderCall(String loaderName, long nanos)
+    {
+        LoaderTiming timing = (LoaderTiming) loaderTimings.get(loaderName);
+        if (timing == null)
+        {
+            LoaderTiming created = new LoaderTiming();
+            timing = (LoaderTiming) loaderTimings.putIfAbsent(loaderName, created);
+            if (timing == null)
+            {
+                timing = created;
+            }
+        }
+        timing.calls.incrementAndGet();
+        timing.nanos.addAndGet(Math.max(nanos, 0));
+    }
+
+    /**
+     * @see ResourceManagerStatisticsMBean#getHits()
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * @see ResourceManagerStatisticsMBean#getMisses()
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * @see ResourceManagerStatisticsMBean#getHitRatio()
+     */
+    public double getHitRatio()
+    {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /**
+     * @see ResourceManagerStatisticsMBean#getLoads()
+     */
+    public long getLoads()
+    {
+        return loads.get();
+    }
+
+    /**
+     * @see ResourceManagerStatisticsMBean#getReloads()
+     */
+    public long getReloads()
+    {
+        return reloads.get();
+    }
+
+    /**
+     * @see ResourceManagerStatisticsMBean#getEvictions()
+     */
+    public long getEvictions()
+    {
+        long evictions = cacheEvictions();
+        return evictions < 0 ? -1 : evictions - evictionBase;
+    }
+
+    private long cacheEvictions()
+    {
+        if (cache instanceof ConcurrentResourceCacheImpl)
+        {
+            return ((ConcurrentResourceCacheImpl) cache).getEvictionCount();
+        }
+        else if (cache instanceof ResourceCacheImpl)
+        {
+            return ((ResourceCacheImpl) cache).getEvictionCount();
+        }
+        return -1;
+    }
+
+    /**
+     * @see ResourceManagerStatisticsMBean#getNotFound()
+     */
+    public long getNotFound()
+    {
+        return notFound.sum();
+    }
+
+    /**
+     * @see ResourceManagerStatisticsMBean#getParseCount()
+     */
+    public long getParseCount()
+    {
+        return parseCount.get();
+    }
+
+    /**
+     * @see ResourceManagerStatisticsMBean#getParseTimeMillis()
+     */
+    public long getParseTimeMillis()
+    {
+        return parseNanos.get() / NANOS_PER_MILLI;
+    }
+
+    /**
+     * @see ResourceManagerStatisticsMBean#getParseTimes()
+     */
+    public Map getParseTimes()
+    {
+        Map times = new HashMap();
+        for (Iterator i = parseTimes.entrySet().iterator(); i.hasNext();)
+        {
+            Map.Entry entry = (Map.Entry) i.next();
+            times.put(entry.getKey(),
+                      new Long(((Long) entry.getValue()).longValue() / NANOS_PER_MILLI));
+        }
+        return times;
+    }
+
+    /**
+     * @see ResourceManagerStatisticsMBean#getLoaderTimes()
+     */
+    public Map getLoaderTimes()
+    {
+        Map times = new HashMap();
+        for (Iterator i = loaderTimings.entrySet().iterator(); i.hasNext();)
+        {
+            Map.Entry entry = (Map.Entry) i.next();
+            LoaderTiming timing = (LoaderTiming) entry.getValue();
+            times.put(entry.getKey(), new Long(timing.nanos.get() / NANOS_PER_MILLI));
+        }
+        return times;
+    }
+
+    /**
+     * @see ResourceManagerStatisticsMBean#getLoaderCalls()
+     */
+    public Map getLoaderCalls()
+    {
+        Map calls = new HashMap();
+        for (Iterator i = loaderTimings.entrySet().iterator(); i.hasNext();)
+        {
+            Map.Entry entry = (Map.Entry) i.next();
+            LoaderTiming timing = (LoaderTiming) entry.getValue();
+            calls.put(entry.getKey(), new Long(timing.calls.get()));
+        }
+        return calls;
+    }
+
+    /**
+     * @see ResourceManagerStatisticsMBean#reset()
+     */
+    public void reset()
+    {
+        hits.reset();
+        misses.reset();
+        notFound.reset();
+        loads.set(0);
+        reloads.set(0);
+        parseCount.set(0);
+        parseNanos.set(0);
+        parseTimes.clear();
+        loaderTimings.clear();
+        evictionBase = Math.max(cacheEvictions(), 0);
+    }
+
+    /**
+     * @return a one line summary of the counters, for logging
+     */
+    public String toString()
+    {
+        return "hits=" + getHits() + " misses=" + getMisses() +
+            " loads=" + getLoads() + " reloads=" + getReloads() +
+            " evictions=" + getEvictions() + " notFound=" + getNotFound() +
+            " parseCount=" + getParseCount() + " parseTimeMillis=" + getParseTimeMillis();
+    }
+
+    private static final class LoaderTiming
+    {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong nanos = new AtomicLong();
+    }
+}
@@ -0,0 +1,102 @@
+package org.apache.velocity.runtime.resource;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link ResourceManagerStatistics}, under which
+ * they are registered with the platform MBean server when
+ * <code>resource.manager.jmx.enabled</code> is true.
+ *
+ * @since 1.8
+ */
+public interface ResourceManagerStatisticsMBean
+{
+    /**
+     * @return number of lookups served from the resource cache
+     */
+    long getHits();
+
+    /**
+     * @return number of lookups which did not find the resource in the cache
+     */
+    long getMisses();
+
+    /**
+     * @return hits divided by all lookups, or 0 if there were none
+     */
+    double getHitRatio();
+
+    /**
+     * @return number of resources loaded because they were not cached
+     */
+    long getLoads();
+
+    /**
+     * @return number of cached resources loaded again because their source changed
+     */
+    long getReloads();
+
+    /**
+     * @return number of resources the cache dropped to make room, or -1
+     *         if the configured cache does not count them
+     */
+    long getEvictions();
+
+    /**
+     * @return number of lookups of resources no loader could find
+     */
+    long getNotFound();
+
+    /**
+     * @return number of templates parsed
+     */
+    long getParseCount();
+
+    /**
+     * @return total time spent reading, parsing and initializing templates,
+     *         in milliseconds
+     */
+    long getParseTimeMillis();
+
+    /**
+     * @return time the last parse of each template took, in milliseconds
+     *         (as Longs), by template name
+     */
+    Map getParseTimes();
+
+    /**
+     * @return total time spent in each resource loader, in milliseconds
+     *         (as Longs), by loader class name
+     */
+    Map getLoaderTimes();
+
+    /**
+     * @return number of calls made to each resource loader (as Longs), by
+     *         loader class name
+     */
+    Map getLoaderCalls();
+
+    /**
+     * Sets all counters and timers back to zero.
+     */
+    void reset();
+}
@@ -0,0 +1,353 @@
+package org.apache.velocity.runtime.resource;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Vector;
+
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.log.Log;
+import org.apache.velocity.runtime.parser.Parser;
+import org.apache.velocity.runtime.parser.node.NodeSnapshot;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
+
+/**
+ * Keeps the parsed form of templates on disk, so that after a restart a
+ * template whose source has not changed is read back instead of parsed.
+ *
+ * There is one file per template, named after a hash of the resource name,
+ * the class of the loader which found it, its encoding and the names and
+ * contents of the configured velocimacro libraries - how a template parses
+ * depends on the velocimacros known when it is parsed (an unknown
+ * #foo(...) is rendered as text), so a changed library makes every
+ * template go through the parser again. The file holds
+ * a hash of the template source it was made from, and is only used when
+ * the source just read hashes to the same value; anything else - a
+ * changed template, a file from an incompatible version, a damaged file -
+ * makes the template go through the parser as usual, after which the file
+ * is written again.
+ *
+ * Macros defined inline in other templates are not part of the key:
+ * templates which call them should be loaded after those templates,
+ * whether or not this cache is used.
+ *
+ * This cache is enabled by setting
+ * <code>resource.manager.snapshot.directory</code>.
+ *
+ * @since 1.8
+ */
+public class TemplateSnapshotCache
+{
+    private static final int MAGIC = 0x56544c41; // VTLA
+
+    private static final String SUFFIX = ".ast";
+
+    private final RuntimeServices rsvc;
+    private final Log log;
+    private final File directory;
+
+    /*
+     *  restored directive nodes need a parser to look up directives when
+     *  they are init()-ed, just like the ones the parser creates
+     */
+    private Parser parser;
+
+    /*
+     *  hash of the velocimacro libraries, computed again on each use
+     *  if they are reloaded when modified
+     */
+    private volatile String macroLibraryHash = null;
+
+    /**
+     * @param rsvc the runtime
+     * @param directory directory to keep the files in, created if needed
+     */
+    public TemplateSnapshotCache(RuntimeServices rsvc, File directory)
+    {
+        this.rsvc = rsvc;
+        this.log = rsvc.getLog();
+        this.directory = directory;
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            log.warn("TemplateSnapshotCache : cannot create directory " + directory);
+        }
+    }
+
+    /**
+     * @return the directory the files are kept in
+     */
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Hashes the source of a template.
+     *
+     * @param source the bytes read from the resource loader
+     * @return the hash to pass to {@link #load} and {@link #store}
+     */
+    public byte[] hash(byte[] source)
+    {
+        return digest().digest(source);
+    }
+
+    /**
+     * Reads back the tree stored for a template.
+     *
+     * @param resource the template, with its name, encoding and loader set
+     * @param sourceHash hash of the source just read for it
+     * @return the tree, not yet init()-ed, or null if there is none for
+     *         this exact source
+     */
+    public SimpleNode load(Resource resource, byte[] sourceHash)
+    {
+        File file = fileFor(resource);
+        if (!file.isFile())
+        {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != NodeSnapshot.FORMAT_VERSION ||
+                !resource.getName().equals(in.readUTF()))
+            {
+                return null;
+            }
+
+            byte[] stored = new byte[in.readInt()];
+            in.readFully(stored);
+            if (!Arrays.equals(stored, sourceHash))
+            {
+                return null;
+            }
+
+            SimpleNode data = NodeSnapshot.read(in, getParser());
+            if (log.isDebugEnabled())
+            {
+                log.debug("TemplateSnapshotCache : restored " + resource.getName() +
+                          " from " + file);
+            }
+            return data;
+        }
+        catch (IOException ioe)
+        {
+            log.debug("TemplateSnapshotCache : ignoring unreadable " + file, ioe);
+            return null;
+        }
+        finally
+        {
+            close(in);
+        }
+    }
+
+    /**
+     * Stores the tree just parsed for a template, replacing any older one.
+     * Failures are logged and otherwise ignored.
+     *
+     * @param resource the template, with its name, encoding and loader set
+     * @param sourceHash hash of the source the tree was parsed from
+     * @param data the tree, before it is init()-ed
+     */
+    public void store(Resource resource, byte[] sourceHash, SimpleNode data)
+    {
+        File file = fileFor(resource);
+        File temp = null;
+        DataOutputStream out = null;
+        try
+        {
+            temp = File.createTempFile("snapshot", ".tmp", directory);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(NodeSnapshot.FORMAT_VERSION);
+            out.writeUTF(resource.getName());
+            out.writeInt(sourceHash.length);
+            out.write(sourceHash);
+            NodeSnapshot.write(data, out);
+            out.close();
+            out = null;
+
+            /*
+             *  readers only ever see complete files
+             */
+            if (!temp.renameTo(file))
+            {
+                file.delete();
+                if (!temp.renameTo(file))
+                {
+                    throw new IOException("cannot rename " + temp + " to " + file);
+                }
+            }
+            temp = null;
+        }
+        catch (IOException ioe)
+        {
+            log.warn("TemplateSnapshotCache : cannot store " + resource.getName() +
+                     " in " + file, ioe);
+        }
+        finally
+        {
+            close(out);
+            if (temp != null)
+            {
+                temp.delete();
+            }
+        }
+    }
+
+    private File fileFor(Resource resource)
+    {
+        String key = resource.getResourceLoader().getClass().getName() + '\n' +
+            resource.getEncoding() + '\n' + resource.getName() + '\n' +
+            getMacroLibraryHash();
+        return new File(directory, toHex(digest().digest(utf8(key))) + SUFFIX);
+    }
+
+    /**
+     * Hashes the names and contents of the velocimacro libraries, found
+     * the way the VelocimacroFactory finds them.
+     */
+    private String getMacroLibraryHash()
+    {
+        String hash = macroLibraryHash;
+        if (hash != null)
+        {
+            return hash;
+        }
+
+        Object libraries = rsvc.getProperty(RuntimeConstants.VM_LIBRARY);
+        if (libraries == null &&
+            rsvc.getLoaderNameForResource(RuntimeConstants.VM_LIBRARY_DEFAULT) != null)
+        {
+            libraries = RuntimeConstants.VM_LIBRARY_DEFAULT;
+        }
+
+        Vector names = new Vector();
+        if (libraries instanceof Vector)
+        {
+            names.addAll((Vector) libraries);
+        }
+        else if (libraries instanceof String)
+        {
+            names.add(libraries);
+        }
+
+        MessageDigest md = digest();
+        for (int i = 0; i < names.size(); i++)
+        {
+            String name = (String) names.get(i);
+            md.update(utf8(name + '\n'));
+            try
+            {
+                md.update(utf8(String.valueOf(rsvc.getContent(name).getData())));
+            }
+            catch (ResourceNotFoundException rnfe)
+            {
+                // a missing library counts as an empty one
+            }
+            md.update((byte) 0);
+        }
+
+        hash = toHex(md.digest());
+        if (!rsvc.getBoolean(RuntimeConstants.VM_LIBRARY_AUTORELOAD, false))
+        {
+            macroLibraryHash = hash;
+        }
+        return hash;
+    }
+
+    private static byte[] utf8(String s)
+    {
+        try
+        {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException uee)
+        {
+            throw new IllegalStateException(uee.getMessage());
+        }
+    }
+
+    private static String toHex(byte[] hash)
+    {
+        StringBuffer sb = new StringBuffer(2 * hash.length);
+        for (int i = 0; i < hash.length; i++)
+        {
+            sb.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(hash[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private synchronized Parser getParser()
+    {
+        if (parser == null)
+        {
+            parser = rsvc.createNewParser();
+        }
+        return parser;
+    }
+
+    private static MessageDigest digest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            // every Java platform is required to provide SHA-1
+            throw new IllegalStateException(nsae.getMessage());
+        }
+    }
+
+    private static void close(Closeable c)
+    {
+        if (c != null)
+        {
+            try
+            {
+                c.close();
+            }
+            catch (IOException ioe)
+            {
+                // nothing to do
+            }
+        }
+    }
+}
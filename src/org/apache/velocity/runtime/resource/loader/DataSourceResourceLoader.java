@@ -19,13 +19,23 @@ package org.apache.velocity.runtime.resource.loader;
  * under the License.    
  */
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
@@ -73,6 +83,27 @@ import org.apache.velocity.util.StringUtils;
  * <BR>
  * <BR>
  *
+ * <P>Templates are fetched concurrently, each with its own connection from the
+ * DataSource, which is expected to pool connections (and, if worthwhile,
+ * prepared statements). Two options cut down the number of queries:
+ * <br>
+ * <br>
+ * ds.resource.loader.resource.prefetch = true <br>
+ * ds.resource.loader.resource.prefetch.prefix = mail/ <br>
+ * ds.resource.loader.resource.batchcheck = true <br>
+ * <br>
+ * <P><code>prefetch</code> reads all the templates - or, with <code>prefetch.prefix</code>,
+ * those whose name starts with the prefix - in a single query when the first
+ * template is requested, and serves each of them once from memory, along
+ * with the timestamp it had then; the ones nobody asks for within a minute
+ * are dropped.
+ * <code>batchcheck</code> fetches the timestamps of all the templates loaded
+ * so far in one query, at most once per <code>modificationCheckInterval</code>,
+ * and answers the modification checks of that period from it. It has no
+ * effect when <code>modificationCheckInterval</code> is not positive.
+ * <BR>
+ * <BR>
+ *
  * Example WEB-INF/web.xml: <br>
  * <br>
  *  <resource-ref> <br>
@@ -133,7 +164,38 @@ public class DataSourceResourceLoader extends ResourceLoader
     private String templateColumn;
     private String timestampColumn;
     private InitialContext ctx;
-    private DataSource dataSource;
+    private volatile DataSource dataSource;
+
+    /** The batched checks fetch timestamps with IN clauses of at most this many names. */
+    private static final int BATCH_SIZE = 100;
+
+    private boolean prefetch = false;
+    private String prefetchPrefix;
+    private volatile boolean prefetched = false;
+    private volatile long prefetchTime = 0;
+
+    /** Prefetched templates still not requested this long after the prefetch are dropped. */
+    private static final long PREFETCH_TTL = 60 * 1000;
+
+    /** Names mapped to the templates read by the prefetch, each served once. */
+    private final ConcurrentMap prefetchedTemplates = new ConcurrentHashMap();
+
+    /**
+     * Names of the prefetched templates served mapped to their timestamps
+     * (as Longs), until getLastModified() asks for them, the template is
+     * fetched again or the prefetch expires.
+     */
+    private final ConcurrentMap servedTimestamps = new ConcurrentHashMap();
+
+    private boolean batchCheck = false;
+
+    /** Names of the templates served, whose timestamps the batched checks fetch. */
+    private final Set servedNames = Collections.newSetFromMap(new ConcurrentHashMap());
+
+    /** Names mapped to their timestamps (as Longs), as of timestampsTime. */
+    private volatile Map timestamps = Collections.EMPTY_MAP;
+    private volatile long timestampsTime = 0;
+    private final Object timestampsLock = new Object();
 
     /**
      * @see ResourceLoader#init(ExtendedProperties)
@@ -146,6 +208,10 @@ public class DataSourceResourceLoader extends ResourceLoader
         templateColumn  = StringUtils.nullTrim(configuration.getString("resource.templatecolumn"));
         timestampColumn = StringUtils.nullTrim(configuration.getString("resource.timestampcolumn"));
 
+        prefetch        = configuration.getBoolean("resource.prefetch", false);
+        prefetchPrefix  = StringUtils.nullTrim(configuration.getString("resource.prefetch.prefix"));
+        batchCheck      = configuration.getBoolean("resource.batchcheck", false);
+
         if (dataSource != null)
         {
             if (log.isDebugEnabled())
@@ -196,7 +262,7 @@ public class DataSourceResourceLoader extends ResourceLoader
     public boolean isSourceModified(final Resource resource)
     {
         return (resource.getLastModified() !=
-                readLastModified(resource, "checking timestamp"));
+                lastModified(resource, "checking timestamp"));
     }
 
     /**
@@ -204,7 +270,35 @@ public class DataSourceResourceLoader extends ResourceLoader
      */
     public long getLastModified(final Resource resource)
     {
-        return readLastModified(resource, "getting timestamp");
+        dropExpiredPrefetch();
+        if (resource.getName() != null && !servedTimestamps.isEmpty())
+        {
+            Long served = (Long) servedTimestamps.remove(resource.getName());
+            if (served != null)
+            {
+                return served.longValue();
+            }
+        }
+        return lastModified(resource, "getting timestamp");
+    }
+
+    /**
+     * Answers from the batched timestamps if they are enabled and know the
+     * resource, and from the database otherwise. Without a positive check
+     * interval there is nothing to batch: the templates are not checked,
+     * and each load would refetch the timestamps of all of them.
+     */
+    private long lastModified(final Resource resource, final String operation)
+    {
+        if (batchCheck && modificationCheckInterval > 0 && resource.getName() != null)
+        {
+            Long timeStamp = (Long) currentTimestamps().get(resource.getName());
+            if (timeStamp != null)
+            {
+                return timeStamp.longValue();
+            }
+        }
+        return readLastModified(resource, operation);
     }
 
     /**
@@ -215,7 +309,7 @@ public class DataSourceResourceLoader extends ResourceLoader
      *  @return InputStream containing template
      * @throws ResourceNotFoundException
      */
-    public synchronized InputStream getResourceStream(final String name)
+    public InputStream getResourceStream(final String name)
         throws ResourceNotFoundException
     {
         if (org.apache.commons.lang.StringUtils.isEmpty(name))
@@ -223,6 +317,25 @@ public class DataSourceResourceLoader extends ResourceLoader
             throw new ResourceNotFoundException("DataSourceResourceLoader: Template name was empty or null");
         }
 
+        if (prefetch && !prefetched)
+        {
+            prefetch();
+        }
+
+        dropExpiredPrefetch();
+        PrefetchedTemplate prefetchedTemplate = (PrefetchedTemplate) prefetchedTemplates.remove(name);
+        if (prefetchedTemplate != null)
+        {
+            servedNames.add(name);
+            servedTimestamps.put(name, new Long(prefetchedTemplate.lastModified));
+            return new ByteArrayInputStream(prefetchedTemplate.template);
+        }
+
+        /*
+         *  the timestamp of an earlier copy does not go with this one
+         */
+        servedTimestamps.remove(name);
+
         Connection conn = null;
         ResultSet rs = null;
         PreparedStatement ps = null;
@@ -242,7 +355,12 @@ public class DataSourceResourceLoader extends ResourceLoader
                                                         + name + "' is null");
                 }
 
-                return new BufferedInputStream(stream);
+                /*
+                 *  read it all before the connection goes back to the pool
+                 */
+                byte[] template = readFully(stream);
+                servedNames.add(name);
+                return new ByteArrayInputStream(template);
             }
             else
             {
@@ -260,6 +378,14 @@ public class DataSourceResourceLoader extends ResourceLoader
             log.error(msg, sqle);
             throw new ResourceNotFoundException(msg);
         }
+        catch (IOException ioe)
+        {
+            String msg = "DataSourceResourceLoader: problem while reading resource '"
+                         + name + "': ";
+
+            log.error(msg, ioe);
+            throw new ResourceNotFoundException(msg);
+        }
         catch (NamingException ne)
         {
             String msg = "DataSourceResourceLoader: database problem while getting resource '"
@@ -276,6 +402,270 @@ public class DataSourceResourceLoader extends ResourceLoader
         }
     }
 
+    /**
+     * Looks for the key of the template only, leaving the template
+     * column - and the prefetched templates - alone.
+     *
+     * @see ResourceLoader#resourceExists(String)
+     * @since 1.8
+     */
+    public boolean resourceExists(final String name)
+    {
+        if (org.apache.commons.lang.StringUtils.isEmpty(name))
+        {
+            return false;
+        }
+
+        Connection conn = null;
+        ResultSet rs = null;
+        PreparedStatement ps = null;
+        try
+        {
+            conn = openDbConnection();
+            ps = getStatement(conn, keyColumn, name);
+            rs = ps.executeQuery();
+            return rs.next();
+        }
+        catch (SQLException sqle)
+        {
+            log.error("DataSourceResourceLoader: database problem while looking for resource '"
+                      + name + "': ", sqle);
+            return false;
+        }
+        catch (NamingException ne)
+        {
+            log.error("DataSourceResourceLoader: database problem while looking for resource '"
+                      + name + "': ", ne);
+            return false;
+        }
+        finally
+        {
+            closeResultSet(rs);
+            closeStatement(ps);
+            closeDbConnection(conn);
+        }
+    }
+
+    /**
+     * Reads all the templates, or those whose name starts with the
+     * prefetch prefix, in a single query. Only the first caller does so;
+     * the others wait for it. Failures are logged, after which the
+     * templates are fetched one by one as usual.
+     */
+    private synchronized void prefetch()
+    {
+        if (prefetched)
+        {
+            return;
+        }
+
+        Connection conn = null;
+        ResultSet rs = null;
+        PreparedStatement ps = null;
+        try
+        {
+            conn = openDbConnection();
+            String sql = "SELECT " + keyColumn + ", " + templateColumn + ", " + timestampColumn +
+                " FROM " + tableName;
+            if (prefetchPrefix != null)
+            {
+                ps = conn.prepareStatement(sql + " WHERE " + keyColumn + " LIKE ? ESCAPE '!'");
+                ps.setString(1, escapeLike(prefetchPrefix) + "%");
+            }
+            else
+            {
+                ps = conn.prepareStatement(sql);
+            }
+            rs = ps.executeQuery();
+
+            Map fetched = new HashMap();
+            while (rs.next())
+            {
+                String name = rs.getString(keyColumn);
+                InputStream stream = rs.getBinaryStream(templateColumn);
+                if (name != null && stream != null)
+                {
+                    Timestamp ts = rs.getTimestamp(timestampColumn);
+                    long lastModified = ts != null ? ts.getTime() : 0;
+                    prefetchedTemplates.put(name,
+                        new PrefetchedTemplate(readFully(stream), lastModified));
+                    fetched.put(name, new Long(lastModified));
+                }
+            }
+            prefetchTime = System.currentTimeMillis();
+
+            if (batchCheck)
+            {
+                timestamps = Collections.unmodifiableMap(fetched);
+                timestampsTime = System.currentTimeMillis();
+            }
+
+            if (log.isDebugEnabled())
+            {
+                log.debug("DataSourceResourceLoader: prefetched " + fetched.size() + " templates");
+            }
+        }
+        catch (Exception e)
+        {
+            log.error("DataSourceResourceLoader: problem while prefetching templates", e);
+        }
+        finally
+        {
+            prefetched = true;
+            closeResultSet(rs);
+            closeStatement(ps);
+            closeDbConnection(conn);
+        }
+    }
+
+    /**
+     * Returns the timestamps of the templates served so far, fetching
+     * them again in a single query once they are older than the
+     * modification check interval.
+     */
+    private Map currentTimestamps()
+    {
+        long now = System.currentTimeMillis();
+        if (now - timestampsTime < modificationCheckInterval * 1000)
+        {
+            return timestamps;
+        }
+
+        synchronized (timestampsLock)
+        {
+            /*
+             *  another thread may just have done it
+             */
+            if (now - timestampsTime < modificationCheckInterval * 1000)
+            {
+                return timestamps;
+            }
+
+            List names = new ArrayList(servedNames);
+            Map fetched = new HashMap();
+            Connection conn = null;
+            try
+            {
+                if (!names.isEmpty())
+                {
+                    conn = openDbConnection();
+                }
+                for (int i = 0; i < names.size(); i += BATCH_SIZE)
+                {
+                    readTimestamps(conn, names.subList(i, Math.min(i + BATCH_SIZE, names.size())),
+                                   fetched);
+                }
+            }
+            catch (Exception e)
+            {
+                /*
+                 *  fall back on checking each template on its own
+                 */
+                log.error("DataSourceResourceLoader: problem while checking timestamps", e);
+                fetched = Collections.EMPTY_MAP;
+            }
+            finally
+            {
+                closeDbConnection(conn);
+            }
+
+            timestamps = Collections.unmodifiableMap(fetched);
+            timestampsTime = now;
+            return timestamps;
+        }
+    }
+
+    /**
+     * Fetches the timestamps of the given templates in one query.
+     */
+    private void readTimestamps(final Connection conn, final List names, final Map fetched)
+        throws SQLException
+    {
+        StringBuffer sql = new StringBuffer("SELECT ").append(keyColumn).append(", ")
+            .append(timestampColumn).append(" FROM ").append(tableName)
+            .append(" WHERE ").append(keyColumn).append(" IN (");
+        for (int i = 0; i < names.size(); i++)
+        {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(')');
+
+        ResultSet rs = null;
+        PreparedStatement ps = null;
+        try
+        {
+            ps = conn.prepareStatement(sql.toString());
+            for (int i = 0; i < names.size(); i++)
+            {
+                ps.setString(i + 1, (String) names.get(i));
+            }
+            rs = ps.executeQuery();
+            while (rs.next())
+            {
+                Timestamp ts = rs.getTimestamp(timestampColumn);
+                fetched.put(rs.getString(keyColumn), new Long(ts != null ? ts.getTime() : 0));
+            }
+        }
+        finally
+        {
+            closeResultSet(rs);
+            closeStatement(ps);
+        }
+    }
+
+    /**
+     * Forgets what the prefetch read once it is older than PREFETCH_TTL.
+     */
+    private void dropExpiredPrefetch()
+    {
+        if ((!prefetchedTemplates.isEmpty() || !servedTimestamps.isEmpty())
+            && System.currentTimeMillis() - prefetchTime > PREFETCH_TTL)
+        {
+            prefetchedTemplates.clear();
+            servedTimestamps.clear();
+        }
+    }
+
+    /**
+     * A template read by the prefetch, with its timestamp at the time.
+     */
+    private static final class PrefetchedTemplate
+    {
+        final byte[] template;
+        final long lastModified;
+
+        PrefetchedTemplate(final byte[] template, final long lastModified)
+        {
+            this.template = template;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static String escapeLike(final String prefix)
+    {
+        return prefix.replaceAll("([!%_])", "!$1");
+    }
+
+    private static byte[] readFully(final InputStream stream)
+        throws IOException
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = stream.read(buffer)) != -1)
+            {
+                bytes.write(buffer, 0, n);
+            }
+            return bytes.toByteArray();
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
     /**
      * Fetches the last modification time of the resource
      *
@@ -355,20 +745,28 @@ public class DataSourceResourceLoader extends ResourceLoader
      */
     private Connection openDbConnection() throws NamingException, SQLException
     {
-         if (dataSource != null)
+         DataSource ds = dataSource;
+         if (ds == null)
          {
-            return dataSource.getConnection();
+            ds = lookupDataSource();
          }
 
-         if (ctx == null)
-         {
-            ctx = new InitialContext();
-         }
+         return ds.getConnection();
+     }
 
-         dataSource = (DataSource) ctx.lookup(dataSourceName);
+    private synchronized DataSource lookupDataSource() throws NamingException
+    {
+         if (dataSource == null)
+         {
+             if (ctx == null)
+             {
+                ctx = new InitialContext();
+             }
 
-         return dataSource.getConnection();
-     }
+             dataSource = (DataSource) ctx.lookup(dataSourceName);
+         }
+         return dataSource;
+    }
 
     /**
      * Closes connection to the datasource
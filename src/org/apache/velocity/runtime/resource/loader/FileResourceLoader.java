@@ -25,15 +25,20 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.collections.ExtendedProperties;
 import org.apache.velocity.exception.ResourceNotFoundException;
 import org.apache.velocity.exception.VelocityException;
+import org.apache.velocity.io.MappedFileReader;
 import org.apache.velocity.io.UnicodeInputStream;
 import org.apache.velocity.runtime.resource.Resource;
 import org.apache.velocity.util.StringUtils;
@@ -43,6 +48,12 @@ import org.apache.velocity.util.StringUtils;
  * as relative to the configured root path.  If the root path is empty
  * treats the template name as an absolute path.
  *
+ * <p>With <code>file.resource.loader.watch = true</code>, the template paths
+ * are watched for changes by the operating system instead of being polled:
+ * the cached templates are never checked for modification, and the resource
+ * manager is told to drop a template as soon as its file changes. The
+ * watching thread runs until the engine is shut down.</p>
+ *
  * @author <a href="mailto:wglass@forio.com">Will Glass-Husain</a>
  * @author <a href="mailto:mailmur@yahoo.com">Aki Nieminen</a>
  * @author <a href="mailto:jvanzyl@apache.org">Jason van Zyl</a>
@@ -66,6 +77,12 @@ public class FileResourceLoader extends ResourceLoader
     /** Shall we inspect unicode files to see what encoding they contain?. */
     private boolean unicode = false;
 
+    /** Watches the paths for changes, if watching is turned on. */
+    private FileResourceWatcher watcher = null;
+
+    /** Shall templates be memory-mapped rather than read through a stream? */
+    private boolean mmap = false;
+
     /**
      * @see ResourceLoader#init(ExtendedProperties)
      */
@@ -88,6 +105,29 @@ public class FileResourceLoader extends ResourceLoader
             log.debug("Do unicode file recognition:  " + unicode);
         }
 
+        mmap = configuration.getBoolean("mmap", false);
+
+        if (configuration.getBoolean("watch", false))
+        {
+            StringUtils.trimStrings(paths);
+            try
+            {
+                watcher = new FileResourceWatcher(this, paths);
+
+                /*
+                 * the watcher tells us about changes,
+                 * so cached templates need not be checked
+                 */
+                modificationCheckInterval = 0;
+                log.debug("FileResourceLoader : watching paths for changes.");
+            }
+            catch (IOException ioe)
+            {
+                log.warn("FileResourceLoader : cannot watch paths for changes, " +
+                         "falling back on checking modification times.", ioe);
+            }
+        }
+
         if (log.isDebugEnabled())
         {
             // trim spaces from all paths
@@ -115,31 +155,7 @@ public class FileResourceLoader extends ResourceLoader
     public InputStream getResourceStream(String templateName)
         throws ResourceNotFoundException
     {
-        /*
-         * Make sure we have a valid templateName.
-         */
-        if (org.apache.commons.lang.StringUtils.isEmpty(templateName))
-        {
-            /*
-             * If we don't get a properly formed templateName then
-             * there's not much we can do. So we'll forget about
-             * trying to search any more paths for the template.
-             */
-            throw new ResourceNotFoundException(
-                "Need to specify a file name or file path!");
-        }
-
-        String template = StringUtils.normalizePath(templateName);
-        if ( template == null || template.length() == 0 )
-        {
-            String msg = "File resource error : argument " + template +
-                " contains .. and may be trying to access " +
-                "content outside of template root.  Rejected.";
-
-            log.error("FileResourceLoader : " + msg);
-
-            throw new ResourceNotFoundException ( msg );
-        }
+        String template = checkTemplateName(templateName);
 
         int size = paths.size();
         for (int i = 0; i < size; i++)
@@ -160,12 +176,7 @@ public class FileResourceLoader extends ResourceLoader
 
             if (inputStream != null)
             {
-                /*
-                 * Store the path that this template came
-                 * from so that we can check its modification
-                 * time.
-                 */
-                templatePaths.put(templateName, path);
+                served(templateName, path, template);
                 return inputStream;
             }
         }
@@ -178,6 +189,107 @@ public class FileResourceLoader extends ResourceLoader
          throw new ResourceNotFoundException("FileResourceLoader : cannot find " + template);
     }
 
+    /**
+     * Memory-maps the template if <code>mmap</code> is enabled, and lets
+     * the parser read it through a {@link MappedFileReader}, which
+     * decodes it in place and skips a byte order mark.
+     *
+     * @see ResourceLoader#getResourceReader(String, String)
+     * @since 1.8
+     */
+    public Reader getResourceReader(String templateName, String encoding)
+        throws ResourceNotFoundException, UnsupportedEncodingException
+    {
+        if (!mmap)
+        {
+            return super.getResourceReader(templateName, encoding);
+        }
+
+        String template = checkTemplateName(templateName);
+
+        int size = paths.size();
+        for (int i = 0; i < size; i++)
+        {
+            String path = (String) paths.get(i);
+            File file = getFile(path, template);
+
+            if (file.canRead())
+            {
+                try
+                {
+                    Reader reader = new MappedFileReader(file, encoding);
+                    served(templateName, path, template);
+                    return reader;
+                }
+                catch (FileNotFoundException fnfe)
+                {
+                    // removed since canRead(), try the next path
+                }
+                catch (UnsupportedEncodingException uee)
+                {
+                    throw uee;
+                }
+                catch (IOException ioe)
+                {
+                    String msg = "Exception while loading Template " + template;
+                    log.error(msg, ioe);
+                    throw new VelocityException(msg, ioe);
+                }
+            }
+        }
+
+        throw new ResourceNotFoundException("FileResourceLoader : cannot find " + template);
+    }
+
+    /**
+     * Store the path that this template came
+     * from so that we can check its modification
+     * time.
+     */
+    private void served(String templateName, String path, String template)
+    {
+        templatePaths.put(templateName, path);
+        if (watcher != null)
+        {
+            watcher.served(getFile(path, template), templateName);
+        }
+    }
+
+    /**
+     * Normalizes a template name, rejecting those which are empty or
+     * reach outside of the template paths.
+     */
+    private String checkTemplateName(String templateName)
+        throws ResourceNotFoundException
+    {
+        /*
+         * Make sure we have a valid templateName.
+         */
+        if (org.apache.commons.lang.StringUtils.isEmpty(templateName))
+        {
+            /*
+             * If we don't get a properly formed templateName then
+             * there's not much we can do. So we'll forget about
+             * trying to search any more paths for the template.
+             */
+            throw new ResourceNotFoundException(
+                "Need to specify a file name or file path!");
+        }
+
+        String template = StringUtils.normalizePath(templateName);
+        if ( template == null || template.length() == 0 )
+        {
+            String msg = "File resource error : argument " + template +
+                " contains .. and may be trying to access " +
+                "content outside of template root.  Rejected.";
+
+            log.error("FileResourceLoader : " + msg);
+
+            throw new ResourceNotFoundException ( msg );
+        }
+        return template;
+    }
+
     /**
      * Overrides superclass for better performance.
      * @since 1.6
@@ -215,6 +327,48 @@ public class FileResourceLoader extends ResourceLoader
         return false;
     }
 
+    /**
+     * Lists every readable file under the paths, by its name relative
+     * to the path it is in.
+     * @see ResourceLoader#listResources()
+     * @since 1.8
+     */
+    public Collection listResources()
+    {
+        Collection names = new LinkedHashSet();
+        int size = paths.size();
+        for (int i = 0; i < size; i++)
+        {
+            String path = ((String) paths.get(i)).trim();
+            if (path.length() > 0)
+            {
+                listFiles(new File(path), "", names);
+            }
+        }
+        return names;
+    }
+
+    private void listFiles(File dir, String prefix, Collection names)
+    {
+        File[] files = dir.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+        for (int i = 0; i < files.length; i++)
+        {
+            String name = prefix + files[i].getName();
+            if (files[i].isDirectory())
+            {
+                listFiles(files[i], name + "/", names);
+            }
+            else if (files[i].canRead())
+            {
+                names.add(name);
+            }
+        }
+    }
+
     /**
      * Try to find a template given a normalized path.
      *
@@ -359,6 +513,35 @@ public class FileResourceLoader extends ResourceLoader
         return modified;
     }
 
+    /**
+     * Stops watching the paths, if they were watched.
+     *
+     * @see ResourceLoader#close()
+     * @since 1.8
+     */
+    public void close()
+    {
+        if (watcher != null)
+        {
+            watcher.close();
+            watcher = null;
+        }
+    }
+
+    /**
+     * Called by the watcher when a file under one of the paths changed.
+     *
+     * @param templateName name of the template the file is
+     */
+    void resourceChanged(String templateName)
+    {
+        if (log.isDebugEnabled())
+        {
+            log.debug("FileResourceLoader : '" + templateName + "' changed");
+        }
+        fireResourceChanged(templateName);
+    }
+
     /**
      * @see ResourceLoader#getLastModified(org.apache.velocity.runtime.resource.Resource)
      */
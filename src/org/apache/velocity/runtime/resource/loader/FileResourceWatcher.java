@@ -0,0 +1,287 @@
+package org.apache.velocity.runtime.resource.loader;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.velocity.runtime.log.Log;
+import org.apache.velocity.util.DaemonThreadFactory;
+
+/**
+ * Watches the template paths of a {@link FileResourceLoader} with a
+ * <code>java.nio.file.WatchService</code>, and reports each file created,
+ * modified or deleted under them back to the loader, by template name.
+ * Kept apart from the loader so that the loader itself does not need
+ * the java.nio.file classes unless watching is turned on.
+ *
+ * @since 1.8
+ */
+class FileResourceWatcher implements Runnable
+{
+    private final FileResourceLoader loader;
+    private final Log log;
+    private final WatchService service;
+
+    /** Template root and watched directory, as a Path[2], by WatchKey. */
+    private final Map directories = new ConcurrentHashMap();
+
+    /**
+     * The names under which each file (by absolute path) has been served,
+     * since those may differ from its path relative to the template root.
+     * A file is forgotten once its change is reported, until it is served
+     * again.
+     */
+    private final Map servedNames = new HashMap();
+
+    /**
+     * Starts watching the given template paths, and every directory below.
+     *
+     * @param loader loader to report changes to
+     * @param paths template paths of the loader
+     * @throws IOException if the watch service cannot be created
+     */
+    FileResourceWatcher(FileResourceLoader loader, List paths)
+        throws IOException
+    {
+        this.loader = loader;
+        this.log = loader.log;
+        this.service = FileSystems.getDefault().newWatchService();
+
+        for (Iterator i = paths.iterator(); i.hasNext(); )
+        {
+            String path = (String) i.next();
+            File dir = new File(path);
+            if ("".equals(path) || !dir.isDirectory())
+            {
+                log.debug("FileResourceWatcher : not watching path '" + path + "'");
+                continue;
+            }
+            Path root = dir.toPath().toAbsolutePath().normalize();
+            register(root, root.toFile());
+        }
+
+        Thread thread = new DaemonThreadFactory("file-watch").newThread(this);
+        thread.start();
+    }
+
+    /**
+     * Remembers that a file was served under the given name, so that a
+     * change to it reaches that name.
+     *
+     * @param file the file
+     * @param templateName the name it was requested by
+     */
+    void served(File file, String templateName)
+    {
+        String key = file.toPath().toAbsolutePath().normalize().toString();
+        synchronized (servedNames)
+        {
+            Set names = (Set) servedNames.get(key);
+            if (names == null)
+            {
+                names = new HashSet();
+                servedNames.put(key, names);
+            }
+            names.add(templateName);
+        }
+    }
+
+    /**
+     * Closes the watch service, which ends the thread taking the changes
+     * off it.
+     */
+    void close()
+    {
+        try
+        {
+            service.close();
+        }
+        catch (IOException ioe)
+        {
+            log.warn("FileResourceWatcher : cannot close the watch service", ioe);
+        }
+        synchronized (servedNames)
+        {
+            servedNames.clear();
+        }
+    }
+
+    /**
+     * Takes the changes off the watch service and reports them, until
+     * the service is closed.
+     */
+    public void run()
+    {
+        while (true)
+        {
+            WatchKey key;
+            try
+            {
+                key = service.take();
+            }
+            catch (InterruptedException ie)
+            {
+                return;
+            }
+            catch (ClosedWatchServiceException cwse)
+            {
+                return;
+            }
+
+            Path[] dirs = (Path[]) directories.get(key);
+            if (dirs != null)
+            {
+                for (Iterator i = key.pollEvents().iterator(); i.hasNext(); )
+                {
+                    WatchEvent event = (WatchEvent) i.next();
+                    try
+                    {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                        {
+                            changedAll();
+                        }
+                        else
+                        {
+                            changed(dirs[0], dirs[1].resolve((Path) event.context()),
+                                    event.kind() == StandardWatchEventKinds.ENTRY_CREATE);
+                        }
+                    }
+                    catch (RuntimeException re)
+                    {
+                        log.error("FileResourceWatcher : exception while reporting " +
+                                  "a change in " + dirs[1], re);
+                    }
+                }
+            }
+
+            if (!key.reset())
+            {
+                directories.remove(key);
+            }
+        }
+    }
+
+    private void register(Path root, File dir)
+    {
+        try
+        {
+            WatchKey key = dir.toPath().register(service, new WatchEvent.Kind[] {
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE });
+            directories.put(key, new Path[] { root, dir.toPath() });
+        }
+        catch (IOException ioe)
+        {
+            log.warn("FileResourceWatcher : cannot watch " + dir +
+                     ", changes to it will go unnoticed", ioe);
+            return;
+        }
+
+        File[] children = dir.listFiles();
+        if (children != null)
+        {
+            for (int i = 0; i < children.length; i++)
+            {
+                if (children[i].isDirectory())
+                {
+                    register(root, children[i]);
+                }
+            }
+        }
+    }
+
+    private void changed(Path root, Path file, boolean created)
+    {
+        File f = file.toFile();
+        if (created && f.isDirectory())
+        {
+            /*
+             * watch the new directory, and report what was put in it
+             * before we got to watch it
+             */
+            register(root, f);
+            File[] children = f.listFiles();
+            if (children != null)
+            {
+                for (int i = 0; i < children.length; i++)
+                {
+                    changed(root, children[i].toPath(), true);
+                }
+            }
+            return;
+        }
+
+        Set names = new HashSet();
+        names.add(root.relativize(file).toString().replace(File.separatorChar, '/'));
+        synchronized (servedNames)
+        {
+            Set served = (Set) servedNames.remove(file.toString());
+            if (served != null)
+            {
+                names.addAll(served);
+            }
+        }
+
+        for (Iterator i = names.iterator(); i.hasNext(); )
+        {
+            loader.resourceChanged((String) i.next());
+        }
+    }
+
+    /**
+     * Some changes were lost, so report everything ever served.
+     */
+    private void changedAll()
+    {
+        List names = new ArrayList();
+        synchronized (servedNames)
+        {
+            for (Iterator i = servedNames.values().iterator(); i.hasNext(); )
+            {
+                names.addAll((Set) i.next());
+            }
+            servedNames.clear();
+        }
+        log.debug("FileResourceWatcher : events were lost, reporting all " +
+                  names.size() + " files as changed");
+
+        for (Iterator i = names.iterator(); i.hasNext(); )
+        {
+            loader.resourceChanged((String) i.next());
+        }
+    }
+}
@@ -23,10 +23,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.JarURLConnection;
 import java.net.URL;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.Hashtable;
 
 import org.apache.velocity.runtime.RuntimeServices;
 import org.apache.velocity.runtime.log.Log;
@@ -34,7 +39,9 @@ import org.apache.velocity.exception.ResourceNotFoundException;
 import org.apache.velocity.exception.VelocityException;
 
 /**
- * A small wrapper around a Jar
+ * A small wrapper around a Jar. The entries of the jar are indexed once,
+ * when it is opened, and the index is never modified afterwards, so that
+ * any number of threads can look up and read entries at the same time.
  *
  * @author <a href="mailto:daveb@miceda-data.com">Dave Bryson</a>
  * @version $Id: JarHolder.java 687177 2008-08-19 22:00:32Z nbubna $
@@ -45,6 +52,12 @@ public class JarHolder
     private JarFile theJar = null;
     private JarURLConnection conn = null;
 
+    /**
+     * Entry names mapped to their JarEntry, plain directories
+     * excluded. Immutable once init() has built it.
+     */
+    private volatile Map entries = Collections.EMPTY_MAP;
+
     private Log log = null;
 
     /**
@@ -82,6 +95,20 @@ public class JarHolder
             conn.setDoOutput(false);
             conn.connect();
             theJar = conn.getJarFile();
+
+            Map index = new HashMap(559);
+            Enumeration all  = theJar.entries();
+            while ( all.hasMoreElements() )
+            {
+                JarEntry je = (JarEntry)all.nextElement();
+
+                // We don't map plain directory entries
+                if ( !je.isDirectory() )
+                {
+                    index.put( je.getName(), je );
+                }
+            }
+            entries = Collections.unmodifiableMap(index);
         }
         catch (IOException ioe)
         {
@@ -109,6 +136,7 @@ public class JarHolder
         }
         theJar = null;
         conn = null;
+        entries = Collections.EMPTY_MAP;
 
         log.trace("JarHolder: JAR file closed");
     }
@@ -124,7 +152,7 @@ public class JarHolder
 
         try
         {
-            JarEntry entry = theJar.getJarEntry( theentry );
+            JarEntry entry = (JarEntry) entries.get( theentry );
 
             if ( entry != null )
             {
@@ -147,20 +175,35 @@ public class JarHolder
     {
         Hashtable allEntries = new Hashtable(559);
 
-        Enumeration all  = theJar.entries();
-        while ( all.hasMoreElements() )
+        for (Iterator i = entries.keySet().iterator(); i.hasNext(); )
         {
-            JarEntry je = (JarEntry)all.nextElement();
-
-            // We don't map plain directory entries
-            if ( !je.isDirectory() )
-            {
-                allEntries.put( je.getName(), this.urlpath );
-            }
+            allEntries.put( i.next(), this.urlpath );
         }
         return allEntries;
     }
 
+    /**
+     * @return The names of the entries of the jar, plain directories
+     *         excluded. The set is not modifiable.
+     * @since 1.8
+     */
+    public Set getEntryNames()
+    {
+        return entries.keySet();
+    }
+
+    /**
+     * @param theentry name of an entry
+     * @return The uncompressed size of the entry, or -1 if it is not
+     *         in the jar or its size is unknown.
+     * @since 1.8
+     */
+    public long getSize( String theentry )
+    {
+        JarEntry entry = (JarEntry) entries.get( theentry );
+        return entry == null ? -1 : entry.getSize();
+    }
+
     /**
      * @return The URL path of this jar holder.
      */
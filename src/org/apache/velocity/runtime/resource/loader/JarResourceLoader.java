@@ -19,12 +19,20 @@ package org.apache.velocity.runtime.resource.loader;
  * under the License.    
  */
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.Vector;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.velocity.util.StringUtils;
 import org.apache.velocity.runtime.resource.Resource;
@@ -54,6 +62,19 @@ import org.apache.commons.collections.ExtendedProperties;
  * conforms to the same rules for the java.net.JarUrlConnection class.
  * </p>
  *
+ * <p> The entries of all the jars are indexed once, when the loader is
+ * initialized, and templates are then looked up and read without any
+ * locking. As the jars are not checked for changes, templates read
+ * repeatedly can be kept uncompressed in memory instead of being inflated
+ * again each time:
+ *    <pre>
+ *    jar.resource.loader.inflated.cache.size = 4194304
+ *    jar.resource.loader.inflated.cache.direct = true
+ *    </pre>
+ * keeps up to 4MB of templates outside of the Java heap. A template is
+ * kept the second time it is read, while the space lasts.
+ * </p>
+ *
  * <p> For a working example, see the unit test case,
  *  org.apache.velocity.test.MultiLoaderTestCase class
  * </p>
@@ -67,16 +88,32 @@ public class JarResourceLoader extends ResourceLoader
     /**
      * Maps entries to the parent JAR File
      * Key = the entry *excluding* plain directories
-     * Value = the JAR URL
+     * Value = the JarHolder
+     * Immutable once init() has built it.
      */
-    private Map entryDirectory = new HashMap(559);
+    private volatile Map entryDirectory = Collections.EMPTY_MAP;
 
     /**
      * Maps JAR URLs to the actual JAR
      * Key = the JAR URL
      * Value = the JAR
      */
-    private Map jarfiles = new HashMap(89);
+    private final Map jarfiles = new HashMap(89);
+
+    /**
+     * Uncompressed copies of templates, as read-only ByteBuffers, by
+     * entry name. Null if disabled.
+     */
+    private ConcurrentMap inflated = null;
+
+    /** Entries read once, which will be kept when read again. */
+    private ConcurrentMap readOnce = null;
+
+    /** Bytes left for uncompressed copies. */
+    private final AtomicLong inflatedSpace = new AtomicLong();
+
+    /** Whether the copies are kept outside of the Java heap. */
+    private boolean inflatedDirect = false;
 
     /**
      * Called by Velocity to initialize the loader
@@ -109,20 +146,31 @@ public class JarResourceLoader extends ResourceLoader
             }
         }
 
+        long inflatedSize = configuration.getLong("inflated.cache.size", 0);
+        if (inflatedSize > 0)
+        {
+            inflated = new ConcurrentHashMap();
+            readOnce = new ConcurrentHashMap();
+            inflatedSpace.set(inflatedSize);
+            inflatedDirect = configuration.getBoolean("inflated.cache.direct", false);
+        }
+
         if (paths != null)
         {
             log.debug("JarResourceLoader # of paths : " + paths.size() );
 
+            Map entries = new HashMap(559);
             for ( int i=0; i<paths.size(); i++ )
             {
-                loadJar( (String)paths.get(i) );
+                loadJar( (String)paths.get(i), entries );
             }
+            entryDirectory = Collections.unmodifiableMap(entries);
         }
 
         log.trace("JarResourceLoader : initialization complete.");
     }
 
-    private void loadJar( String path )
+    private void loadJar( String path, Map entries )
     {
         if (log.isDebugEnabled())
         {
@@ -154,7 +202,7 @@ public class JarResourceLoader extends ResourceLoader
         // Create a new JarHolder
         JarHolder temp = new JarHolder( rsvc,  path );
         // Add it's entries to the entryCollection
-        addEntries( temp.getEntries() );
+        addEntries( temp, entries );
         // Add it to the Jar table
         jarfiles.put( temp.getUrlPath(), temp );
     }
@@ -176,9 +224,12 @@ public class JarResourceLoader extends ResourceLoader
      * Copy all the entries into the entryDirectory
      * It will overwrite any duplicate keys.
      */
-    private void addEntries( Hashtable entries )
+    private void addEntries( JarHolder holder, Map entries )
     {
-        entryDirectory.putAll( entries );
+        for (Iterator i = holder.getEntryNames().iterator(); i.hasNext(); )
+        {
+            entries.put( i.next(), holder );
+        }
     }
 
     /**
@@ -221,14 +272,30 @@ public class JarResourceLoader extends ResourceLoader
             normalizedPath = normalizedPath.substring(1);
         }
 
-        if ( entryDirectory.containsKey( normalizedPath ) )
+        JarHolder holder = (JarHolder)entryDirectory.get( normalizedPath );
+
+        if ( holder != null )
         {
-            String jarurl  = (String)entryDirectory.get( normalizedPath );
+            if (inflated != null)
+            {
+                ByteBuffer copy = (ByteBuffer)inflated.get( normalizedPath );
+                if (copy != null)
+                {
+                    return new ByteBufferInputStream( copy.duplicate() );
+                }
+                if (readOnce.putIfAbsent( normalizedPath, Boolean.TRUE ) != null)
+                {
+                    copy = inflate( holder, normalizedPath );
+                    if (copy != null)
+                    {
+                        return new ByteBufferInputStream( copy.duplicate() );
+                    }
+                }
+            }
 
-            if ( jarfiles.containsKey( jarurl ) )
+            results =  holder.getResource( normalizedPath );
+            if (results != null)
             {
-                JarHolder holder = (JarHolder)jarfiles.get( jarurl );
-                results =  holder.getResource( normalizedPath );
                 return results;
             }
         }
@@ -238,6 +305,135 @@ public class JarResourceLoader extends ResourceLoader
 
     }
 
+    /**
+     * Reads an entry into an uncompressed copy and keeps it, if there is
+     * space left for it.
+     *
+     * @return the copy, or null if there is no space for it
+     */
+    private ByteBuffer inflate( JarHolder holder, String name )
+        throws ResourceNotFoundException
+    {
+        long size = holder.getSize( name );
+        if (size < 0 || size > Integer.MAX_VALUE)
+        {
+            return null;
+        }
+
+        long space;
+        do
+        {
+            space = inflatedSpace.get();
+            if (size > space)
+            {
+                return null;
+            }
+        }
+        while (!inflatedSpace.compareAndSet( space, space - size ));
+
+        ByteBuffer copy = null;
+        InputStream is = holder.getResource( name );
+        try
+        {
+            if (is != null)
+            {
+                byte[] bytes = new byte[(int) size];
+                int read = 0;
+                int n;
+                while (read < bytes.length && (n = is.read( bytes, read, bytes.length - read )) != -1)
+                {
+                    read += n;
+                }
+                if (read == bytes.length && is.read() == -1)
+                {
+                    if (inflatedDirect)
+                    {
+                        copy = ByteBuffer.allocateDirect( bytes.length );
+                        copy.put( bytes );
+                        copy.flip();
+                    }
+                    else
+                    {
+                        copy = ByteBuffer.wrap( bytes );
+                    }
+                    copy = copy.asReadOnlyBuffer();
+                }
+            }
+        }
+        catch (IOException ioe)
+        {
+            log.debug("JarResourceLoader : cannot keep a copy of " + name, ioe);
+        }
+        finally
+        {
+            if (is != null)
+            {
+                try
+                {
+                    is.close();
+                }
+                catch (IOException ioe)
+                {
+                    // Ignore
+                }
+            }
+        }
+
+        if (copy == null || inflated.putIfAbsent( name, copy ) != null)
+        {
+            inflatedSpace.addAndGet( size );
+        }
+        return copy == null ? null : (ByteBuffer) inflated.get( name );
+    }
+
+    /**
+     * An InputStream over the remaining bytes of a buffer.
+     */
+    private static final class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream( ByteBuffer buffer )
+        {
+            this.buffer = buffer;
+        }
+
+        public int read()
+        {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        public int read( byte[] b, int off, int len )
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (!buffer.hasRemaining())
+            {
+                return -1;
+            }
+            int n = Math.min( len, buffer.remaining() );
+            buffer.get( b, off, n );
+            return n;
+        }
+
+        public int available()
+        {
+            return buffer.remaining();
+        }
+    }
+
+
+    /**
+     * Lists the entries of all the JARs.
+     * @see ResourceLoader#listResources()
+     * @since 1.8
+     */
+    public Collection listResources()
+    {
+        return new ArrayList(entryDirectory.keySet());
+    }
 
     // TODO: SHOULD BE DELEGATED TO THE JARHOLDER
 
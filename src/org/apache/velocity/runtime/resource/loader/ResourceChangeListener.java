@@ -0,0 +1,40 @@
+package org.apache.velocity.runtime.resource.loader;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+/**
+ * Receives the changes which a {@link ResourceLoader} detects on its own,
+ * without being asked through {@link ResourceLoader#isSourceModified}.
+ * The resource manager registers one of these with each of its loaders
+ * to drop what it has cached for a changed resource.
+ *
+ * @since 1.8
+ */
+public interface ResourceChangeListener
+{
+    /**
+     * Called when a resource has been modified, added or removed.
+     *
+     * @param loader the loader the change was detected by
+     * @param resourceName name of the resource, as it would be
+     *        requested from the loader
+     */
+    public void resourceChanged(ResourceLoader loader, String resourceName);
+}
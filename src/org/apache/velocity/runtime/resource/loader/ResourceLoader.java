@@ -19,7 +19,16 @@ package org.apache.velocity.runtime.resource.loader;
  * under the License.    
  */
 
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.velocity.runtime.RuntimeServices;
 import org.apache.velocity.runtime.log.Log;
@@ -60,6 +69,12 @@ public abstract class ResourceLoader
     protected RuntimeServices rsvc = null;
     protected Log log = null;
 
+    /**
+     * Listeners to tell about the changes this loader
+     * detects on its own.
+     */
+    private final List changeListeners = new CopyOnWriteArrayList();
+
     /**
      * This initialization is used by all resource
      * loaders and must be called to set up common
@@ -136,6 +151,47 @@ public abstract class ResourceLoader
     public abstract InputStream getResourceStream( String source )
         throws ResourceNotFoundException;
 
+    /**
+     * Get a Reader over the characters of a resource, which the Runtime
+     * will parse to create a template. The default implementation
+     * decodes the stream returned by {@link #getResourceStream(String)};
+     * loaders which can hand out characters more cheaply override it.
+     *
+     * @param source name of the resource
+     * @param encoding character encoding of the resource
+     * @return A Reader for the requested resource, or null if
+     *         getResourceStream() returned null.
+     * @throws ResourceNotFoundException if the resource cannot be found
+     * @throws UnsupportedEncodingException if the encoding is not supported
+     * @since 1.8
+     */
+    public Reader getResourceReader(String source, String encoding)
+        throws ResourceNotFoundException, UnsupportedEncodingException
+    {
+        InputStream is = getResourceStream(source);
+        if (is == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            return new BufferedReader(new InputStreamReader(is, encoding));
+        }
+        catch (UnsupportedEncodingException uee)
+        {
+            try
+            {
+                is.close();
+            }
+            catch (IOException ioe)
+            {
+                // Ignore
+            }
+            throw uee;
+        }
+    }
+
     /**
      * Given a template, check to see if the source of InputStream
      * has been modified.
@@ -207,6 +263,67 @@ public abstract class ResourceLoader
         return modificationCheckInterval;
     }
 
+    /**
+     * Lists the names of all the resources this loader can supply, e.g.
+     * to load them ahead of time. Loaders whose source cannot be listed
+     * return null, which is what this default implementation does.
+     *
+     * @return names of the resources, or null if they cannot be listed
+     * @since 1.8
+     */
+    public Collection listResources()
+    {
+        return null;
+    }
+
+    /**
+     * Releases what the loader holds outside of itself, such as threads
+     * or watch services. Called when the engine is shut down; the loader
+     * is not used afterwards. This default implementation does nothing.
+     *
+     * @since 1.8
+     */
+    public void close()
+    {
+    }
+
+    /**
+     * Registers a listener to be told about the resource changes this
+     * loader detects on its own. Most loaders only ever learn about
+     * changes when asked through {@link #isSourceModified(Resource)}, and
+     * never call the listeners.
+     *
+     * @param listener the listener to add
+     * @since 1.8
+     */
+    public void addResourceChangeListener(ResourceChangeListener listener)
+    {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * @param listener the listener to remove
+     * @since 1.8
+     */
+    public void removeResourceChangeListener(ResourceChangeListener listener)
+    {
+        changeListeners.remove(listener);
+    }
+
+    /**
+     * Tells the registered listeners that the named resource changed.
+     *
+     * @param resourceName name of the resource which changed
+     * @since 1.8
+     */
+    protected void fireResourceChanged(String resourceName)
+    {
+        for (Iterator i = changeListeners.iterator(); i.hasNext(); )
+        {
+            ((ResourceChangeListener) i.next()).resourceChanged(this, resourceName);
+        }
+    }
+
     /**
      * Check whether any given resource exists. This is not really
      * a very efficient test and it can and should be overridden in the
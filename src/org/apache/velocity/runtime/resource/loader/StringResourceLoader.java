@@ -31,6 +31,7 @@ import org.apache.velocity.exception.ResourceNotFoundException;
 import org.apache.velocity.exception.VelocityException;
 import org.apache.velocity.runtime.resource.Resource;
 import org.apache.velocity.runtime.resource.util.StringResource;
+import org.apache.velocity.runtime.resource.util.StringResourceListener;
 import org.apache.velocity.runtime.resource.util.StringResourceRepository;
 import org.apache.velocity.runtime.resource.util.StringResourceRepositoryImpl;
 import org.apache.velocity.util.ClassUtils;
@@ -149,6 +150,20 @@ public class StringResourceLoader extends ResourceLoader
     /** The default repository encoding. */
     public static final String REPOSITORY_ENCODING_DEFAULT = "UTF-8";
 
+    /**
+     * Key to determine whether the loader should listen to the changes
+     * of a {@link StringResourceRepositoryImpl} and drop the changed
+     * templates from the cache, instead of checking modification dates.
+     * @since 1.8
+     */
+    public static final String REPOSITORY_EVENTS = "repository.events";
+
+    /**
+     * By default, modification dates are checked.
+     * @since 1.8
+     */
+    public static final boolean REPOSITORY_EVENTS_DEFAULT = false;
+
 
     protected static final Map STATIC_REPOSITORIES =
         Collections.synchronizedMap(new HashMap());
@@ -204,6 +219,15 @@ public class StringResourceLoader extends ResourceLoader
     // the repository used internally by this resource loader
     protected StringResourceRepository repository;
 
+    // passes the repository changes on to our own listeners
+    private final StringResourceListener repositoryListener = new StringResourceListener()
+    {
+        public void stringResourceChanged(StringResourceRepository repo, String name)
+        {
+            fireResourceChanged(name);
+        }
+    };
+
 
     /**
      * @see ResourceLoader#init(ExtendedProperties)
@@ -275,6 +299,26 @@ public class StringResourceLoader extends ResourceLoader
             }
         }
 
+        if (configuration.getBoolean(REPOSITORY_EVENTS, REPOSITORY_EVENTS_DEFAULT))
+        {
+            if (this.repository instanceof StringResourceRepositoryImpl)
+            {
+                ((StringResourceRepositoryImpl)this.repository).addListener(repositoryListener);
+
+                /*
+                 * the repository tells us about changes,
+                 * so cached templates need not be checked
+                 */
+                modificationCheckInterval = 0;
+                log.debug("StringResourceLoader : listening to repository changes.");
+            }
+            else
+            {
+                log.warn("StringResourceLoader : repository "+this.repository.getClass().getName()+
+                         " cannot report changes, falling back on checking modification times.");
+            }
+        }
+
         log.trace("StringResourceLoader : initialization complete.");
     }
 
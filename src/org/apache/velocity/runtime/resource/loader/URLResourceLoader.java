@@ -19,12 +19,18 @@ package org.apache.velocity.runtime.resource.loader;
  * under the License.    
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.apache.commons.collections.ExtendedProperties;
 import org.apache.commons.lang.StringUtils;
 import org.apache.velocity.exception.VelocityException;
@@ -34,6 +40,14 @@ import org.apache.velocity.runtime.resource.Resource;
 /**
  * This is a simple URL-based loader.
  *
+ * Templates are fetched concurrently. For http(s) URLs, the Last-Modified
+ * and ETag headers a template was served with are remembered, and
+ * modification checks are conditional requests carrying them, so that an
+ * unchanged template costs a 304 response rather than a download. When a
+ * check finds the template changed, the body it received is kept for the
+ * reload which follows, if that comes within a few seconds. The <code>timeout</code> (in milliseconds) applies
+ * to connecting and to reading, on every request.
+ *
  * @author <a href="mailto:geirm@apache.org">Geir Magnusson Jr.</a>
  * @author <a href="mailto:nbubna@apache.org">Nathan Bubna</a>
  * @version $Id: URLResourceLoader.java 191743 2005-06-21 23:22:20Z dlr $
@@ -42,7 +56,17 @@ import org.apache.velocity.runtime.resource.Resource;
 public class URLResourceLoader extends ResourceLoader
 {
     private String[] roots = null;
-    protected HashMap templateRoots = null;
+    protected Map templateRoots = null;
+
+    /** Names of templates fetched over HTTP mapped to their Validators. */
+    private final ConcurrentMap validators = new ConcurrentHashMap();
+
+    /** Bodies received by modification checks, as CheckedBodies by name, until the reload fetches them. */
+    private final ConcurrentMap checkedBodies = new ConcurrentHashMap();
+
+    /** Checked bodies older than this many milliseconds are fetched again instead. */
+    private static final long CHECKED_BODY_MAX_AGE = 10 * 1000;
+
     private int timeout = -1;
     private Method[] timeoutMethods;
 
@@ -81,7 +105,7 @@ public class URLResourceLoader extends ResourceLoader
         }
 
         // init the template paths map
-        templateRoots = new HashMap();
+        templateRoots = new ConcurrentHashMap();
 
         log.trace("URLResourceLoader : initialization complete.");
     }
@@ -95,7 +119,7 @@ public class URLResourceLoader extends ResourceLoader
      * @throws ResourceNotFoundException if template not found
      *         in the file template path.
      */
-    public synchronized InputStream getResourceStream(String name)
+    public InputStream getResourceStream(String name)
         throws ResourceNotFoundException
     {
         if (StringUtils.isEmpty(name))
@@ -103,6 +127,12 @@ public class URLResourceLoader extends ResourceLoader
             throw new ResourceNotFoundException("URLResourceLoader : No template name provided");
         }
 
+        CheckedBody checked = (CheckedBody) checkedBodies.remove(name);
+        if (checked != null && checked.isCurrent(validators.get(name)))
+        {
+            return new ByteArrayInputStream(checked.body);
+        }
+
         InputStream inputStream = null;
         Exception exception = null;
         for(int i=0; i < roots.length; i++)
@@ -116,6 +146,11 @@ public class URLResourceLoader extends ResourceLoader
 
                 if (inputStream != null)
                 {
+                    if (conn instanceof HttpURLConnection)
+                    {
+                        validators.put(name, new Validator(conn));
+                    }
+
                     if (log.isDebugEnabled()) log.debug("URLResourceLoader: Found '"+name+"' at '"+roots[i]+"'");
 
                     // save this root for later re-use
@@ -154,6 +189,53 @@ public class URLResourceLoader extends ResourceLoader
         return inputStream;
     }
 
+    /**
+     * Asks each root whether it has the template, with a HEAD request for
+     * http(s) URLs, so that nothing is downloaded.
+     *
+     * @see ResourceLoader#resourceExists(String)
+     * @since 1.8
+     */
+    public boolean resourceExists(String name)
+    {
+        if (StringUtils.isEmpty(name))
+        {
+            return false;
+        }
+
+        for (int i = 0; i < roots.length; i++)
+        {
+            try
+            {
+                URL u = new URL(roots[i] + name);
+                URLConnection conn = u.openConnection();
+                tryToSetTimeout(conn);
+
+                if (conn instanceof HttpURLConnection)
+                {
+                    HttpURLConnection http = (HttpURLConnection) conn;
+                    http.setRequestMethod("HEAD");
+                    int status = http.getResponseCode();
+                    http.disconnect();
+                    if (status >= 200 && status < 300)
+                    {
+                        return true;
+                    }
+                }
+                else
+                {
+                    conn.getInputStream().close();
+                    return true;
+                }
+            }
+            catch (IOException ioe)
+            {
+                if (log.isDebugEnabled()) log.debug("URLResourceLoader: Exception when looking for '"+name+"' at '"+roots[i]+"'", ioe);
+            }
+        }
+        return false;
+    }
+
     /**
      * Checks to see if a resource has been deleted, moved or modified.
      *
@@ -190,6 +272,12 @@ public class URLResourceLoader extends ResourceLoader
             URL u = new URL(root + name);
             URLConnection conn = u.openConnection();
             tryToSetTimeout(conn);
+
+            Validator validator = (Validator) validators.get(name);
+            if (validator != null && conn instanceof HttpURLConnection)
+            {
+                return checkLastModified(name, (HttpURLConnection) conn, validator);
+            }
             return conn.getLastModified();
         }
         catch (IOException ioe)
@@ -201,6 +289,134 @@ public class URLResourceLoader extends ResourceLoader
         }
     }
 
+    /**
+     * Asks the server whether the template changed since it was fetched.
+     * If it did, the new body is kept for the reload.
+     *
+     * @return the time the template was last modified, or 0 if the server
+     *         did not provide it
+     */
+    private long checkLastModified(String name, HttpURLConnection conn, Validator validator)
+        throws IOException
+    {
+        if (validator.lastModified > 0)
+        {
+            conn.setIfModifiedSince(validator.lastModified);
+        }
+        if (validator.etag != null)
+        {
+            conn.setRequestProperty("If-None-Match", validator.etag);
+        }
+
+        int status = conn.getResponseCode();
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED)
+        {
+            /*
+             *  a body checked just before - as isSourceModified() and then
+             *  getLastModified() are called in turn on a refresh - is
+             *  still the current one, and stays for the reload.
+             *  Let the connection go back to the keep-alive cache.
+             */
+            InputStream empty = conn.getInputStream();
+            empty.close();
+            return validator.lastModified;
+        }
+        if (status != HttpURLConnection.HTTP_OK)
+        {
+            conn.disconnect();
+            checkedBodies.remove(name);
+            validators.remove(name);
+            return 0;
+        }
+
+        Validator current = new Validator(conn);
+        InputStream is = conn.getInputStream();
+        try
+        {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = is.read(buffer)) != -1)
+            {
+                body.write(buffer, 0, n);
+            }
+            dropStaleBodies();
+            checkedBodies.put(name, new CheckedBody(body.toByteArray(), current));
+        }
+        finally
+        {
+            is.close();
+        }
+        validators.put(name, current);
+        return current.lastModified;
+    }
+
+    /**
+     * Drops the checked bodies no reload came for.
+     */
+    private void dropStaleBodies()
+    {
+        for (Iterator i = checkedBodies.values().iterator(); i.hasNext(); )
+        {
+            if (((CheckedBody) i.next()).isStale())
+            {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * A body received by a modification check, with the Validator it came
+     * with. It is only served while that is still the template's Validator,
+     * and for a few seconds.
+     */
+    private static final class CheckedBody
+    {
+        final byte[] body;
+        final Validator validator;
+        final long received = System.currentTimeMillis();
+
+        CheckedBody(byte[] body, Validator validator)
+        {
+            this.body = body;
+            this.validator = validator;
+        }
+
+        boolean isStale()
+        {
+            return System.currentTimeMillis() - received > CHECKED_BODY_MAX_AGE;
+        }
+
+        boolean isCurrent(Object currentValidator)
+        {
+            return validator == currentValidator && !isStale();
+        }
+    }
+
+    /**
+     * What an HTTP server said about the version of a template it served.
+     */
+    private static final class Validator
+    {
+        /**
+         * The Last-Modified time or, for a server which only sends an
+         * ETag, when this version was fetched; 0 if it sent neither.
+         */
+        final long lastModified;
+        final String etag;
+
+        Validator(URLConnection conn)
+        {
+            etag = conn.getHeaderField("ETag");
+            long modified = conn.getLastModified();
+            if (modified == 0 && etag != null)
+            {
+                modified = System.currentTimeMillis();
+            }
+            lastModified = modified;
+        }
+    }
+
     /**
      * Returns the current, custom timeout setting. If negative, there is no custom timeout.
      * @since 1.6
@@ -31,13 +31,16 @@ package org.apache.velocity.runtime.resource.util;
 public final class StringResource
 {
     /** template body */
-    private String body;
+    private volatile String body;
     
     /** encoding */
-    private String encoding;
+    private volatile String encoding;
 
     /** last modified ts */
-    private long lastModified;
+    private volatile long lastModified;
+
+    /** version the repository stored this under */
+    private volatile long version;
 
     /**
      * convenience constructor; sets body to 'body' and sets lastModified to now
@@ -67,6 +70,29 @@ public final class StringResource
         return lastModified;
     }
 
+    /**
+     * Returns the version the repository stored this resource under.
+     * Versions only ever increase within a repository, so unlike the
+     * modification date they tell apart two bodies stored in the same
+     * millisecond.
+     *
+     * @return the version, or 0 if the resource was never stored
+     * @since 1.8
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * @param version the version assigned by the repository
+     * @since 1.8
+     */
+    void setVersion(final long version)
+    {
+        this.version = version;
+    }
+
     /**
      * Sets a new  value for the template body.
      * @param body New body value
@@ -0,0 +1,40 @@
+package org.apache.velocity.runtime.resource.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+/**
+ * Receives the changes made to a {@link StringResourceRepositoryImpl}.
+ * The {@link org.apache.velocity.runtime.resource.loader.StringResourceLoader}
+ * registers one of these when its <code>repository.events</code> setting
+ * is on, so that changed templates are dropped from the cache at once.
+ *
+ * @since 1.8
+ */
+public interface StringResourceListener
+{
+    /**
+     * Called when a resource has been put into or removed from the
+     * repository.
+     *
+     * @param repository the repository which changed
+     * @param name name of the changed resource
+     */
+    public void stringResourceChanged(StringResourceRepository repository, String name);
+}
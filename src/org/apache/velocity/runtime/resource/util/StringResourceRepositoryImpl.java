@@ -19,14 +19,23 @@ package org.apache.velocity.runtime.resource.util;
  * under the License.
  */
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.velocity.runtime.resource.loader.StringResourceLoader;
 
 /**
  * Default implementation of StringResourceRepository.
- * Uses a HashMap for storage
+ * Uses a ConcurrentHashMap for storage, so reads never lock. Every
+ * stored resource gets a new version, and registered
+ * {@link StringResourceListener}s are told about each put and remove.
+ * Listeners are held weakly, so that a repository shared by several
+ * engines does not keep the loaders of discarded ones alive.
  *
  * @author <a href="mailto:eelco.hillenius@openedge.nl">Eelco Hillenius</a>
  * @author <a href="mailto:henning@apache.org">Henning P. Schmiedehausen</a>
@@ -38,7 +47,22 @@ public class StringResourceRepositoryImpl implements StringResourceRepository
     /**
      * mem store
      */
-    protected Map resources = Collections.synchronizedMap(new HashMap());
+    protected Map resources = new ConcurrentHashMap();
+
+    /**
+     * Stands for the null name, which the map does not take.
+     */
+    private static final Object NULL_NAME = new Object();
+
+    /**
+     * Source of the resource versions.
+     */
+    private final AtomicLong versions = new AtomicLong();
+
+    /**
+     * WeakReferences to the listeners told about every change.
+     */
+    private final List listeners = new CopyOnWriteArrayList();
 
     /**
      * Current Repository encoding.
@@ -50,7 +74,7 @@ public class StringResourceRepositoryImpl implements StringResourceRepository
      */
     public StringResource getStringResource(final String name)
     {
-        return (StringResource)resources.get(name);
+        return (StringResource)resources.get(key(name));
     }
 
     /**
@@ -58,7 +82,7 @@ public class StringResourceRepositoryImpl implements StringResourceRepository
      */
     public void putStringResource(final String name, final String body)
     {
-        resources.put(name, new StringResource(body, getEncoding()));
+        putStringResource(name, body, getEncoding());
     }
 
     /**
@@ -67,7 +91,33 @@ public class StringResourceRepositoryImpl implements StringResourceRepository
      */
     public void putStringResource(final String name, final String body, final String encoding)
     {
-        resources.put(name, new StringResource(body, encoding));
+        StringResource resource = new StringResource(body, encoding);
+        Object key = key(name);
+        boolean replaced;
+        do
+        {
+            /*
+             * keep the modification dates apart too, for those
+             * still polling them
+             */
+            StringResource previous = (StringResource)resources.get(key);
+            if (previous != null &&
+                resource.getLastModified() <= previous.getLastModified())
+            {
+                resource.setLastModified(previous.getLastModified() + 1);
+            }
+            resource.setVersion(versions.incrementAndGet());
+
+            replaced = previous == null
+                ? resources.putIfAbsent(key, resource) == null
+                : resources.replace(key, previous, resource);
+        }
+        while (!replaced);
+
+        if (name != null)
+        {
+            fireChanged(name);
+        }
     }
 
     /**
@@ -75,7 +125,70 @@ public class StringResourceRepositoryImpl implements StringResourceRepository
      */
     public void removeStringResource(final String name)
     {
-        resources.remove(name);
+        if (resources.remove(key(name)) != null && name != null)
+        {
+            fireChanged(name);
+        }
+    }
+
+    private static Object key(final String name)
+    {
+        return name != null ? (Object)name : NULL_NAME;
+    }
+
+    /**
+     * Registers a listener to be told whenever a resource is put
+     * into or removed from this repository. Changes made through
+     * {@link StringResource#setBody(String)} are not reported.
+     * The listener is only held weakly: it stays registered for as
+     * long as something else refers to it.
+     *
+     * @param listener the listener to add
+     * @since 1.8
+     */
+    public void addListener(final StringResourceListener listener)
+    {
+        listeners.add(new WeakReference(listener));
+    }
+
+    /**
+     * @param listener the listener to remove
+     * @since 1.8
+     */
+    public void removeListener(final StringResourceListener listener)
+    {
+        for (Iterator i = listeners.iterator(); i.hasNext(); )
+        {
+            WeakReference ref = (WeakReference)i.next();
+            Object registered = ref.get();
+            if (registered == null || registered == listener)
+            {
+                listeners.remove(ref);
+            }
+        }
+    }
+
+    /**
+     * Tells the registered listeners that the named resource changed.
+     *
+     * @param name name of the changed resource
+     * @since 1.8
+     */
+    protected void fireChanged(final String name)
+    {
+        for (Iterator i = listeners.iterator(); i.hasNext(); )
+        {
+            WeakReference ref = (WeakReference)i.next();
+            StringResourceListener listener = (StringResourceListener)ref.get();
+            if (listener != null)
+            {
+                listener.stringResourceChanged(this, name);
+            }
+            else
+            {
+                listeners.remove(ref);
+            }
+        }
     }
 
     /**
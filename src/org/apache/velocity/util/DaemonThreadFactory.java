@@ -0,0 +1,58 @@
+package org.apache.velocity.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * ThreadFactory for the background threads Velocity starts on its own
+ * behalf. The threads are daemons, so that an engine which is never
+ * explicitly shut down does not keep the JVM alive, and are named after
+ * their purpose so that they can be told apart in thread dumps.
+ *
+ * @since 1.8
+ */
+public class DaemonThreadFactory implements ThreadFactory
+{
+    private final String prefix;
+    private int count = 0;
+
+    /**
+     * @param name purpose of the threads, used as the thread name prefix
+     */
+    public DaemonThreadFactory(String name)
+    {
+        this.prefix = "velocity-" + name + "-";
+    }
+
+    /**
+     * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+     */
+    public Thread newThread(Runnable r)
+    {
+        Thread thread;
+        synchronized (this)
+        {
+            thread = new Thread(r, prefix + (++count));
+        }
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,444 @@
+package org.apache.velocity.util.introspection;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.velocity.runtime.parser.node.AbstractExecutor;
+import org.apache.velocity.runtime.parser.node.BooleanPropertyExecutor;
+import org.apache.velocity.runtime.parser.node.GetExecutor;
+import org.apache.velocity.runtime.parser.node.PropertyExecutor;
+import org.apache.velocity.runtime.parser.node.PutExecutor;
+import org.apache.velocity.runtime.parser.node.SetExecutor;
+import org.apache.velocity.runtime.parser.node.SetPropertyExecutor;
+
+/**
+ * Chainable uberspector calling the methods, getters and setters found by
+ * the wrapped uberspector through method handles rather than through
+ * reflection, which saves the access checks and the argument array of
+ * <code>Method.invoke()</code>. The call itself is not inlined either
+ * way: each handle is held in a field and invoked from a single call
+ * site for every method, which the JIT cannot specialize (accessor
+ * classes generated with <code>LambdaMetafactory</code> measure the
+ * same, for the same reason).
+ * Results it does not know how to bind, such as methods of non public
+ * classes or those of custom uberspectors, are returned unchanged.
+ *
+ * <p>To use it, add it after the uberspector it should wrap:
+ * <pre>
+ * runtime.introspector.uberspect = org.apache.velocity.util.introspection.UberspectImpl, \
+ *     org.apache.velocity.util.introspection.MethodHandleUberspector
+ * </pre>
+ * When it is the only one configured, it wraps an {@link UberspectImpl}.
+ * What it saves is a small part of a merge, and depends on the JVM: where
+ * reflection is itself built on method handles, as from Java 18, there is
+ * little left to save. Measure before enabling it; the
+ * <code>MethodHandleUberspectorBenchmark</code> of the test tree compares
+ * the two on a template of property reads, method calls and #set()s.
+ *
+ * @since 1.8
+ */
+public class MethodHandleUberspector extends AbstractChainableUberspector
+{
+    private static final MethodType METHOD_TYPE =
+        MethodType.methodType(Object.class, Object.class, Object[].class);
+
+    private static final MethodType GETTER_TYPE =
+        MethodType.methodType(Object.class, Object.class);
+
+    private static final MethodType SETTER_TYPE =
+        MethodType.methodType(Object.class, Object.class, Object.class);
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    /*
+     * What the handles are made for
+     */
+    private static final int METHOD = 0;
+    private static final int GETTER = 1;
+    private static final int GET = 2;
+    private static final int SETTER = 3;
+    private static final int PUT = 4;
+
+    /** Stands for the methods which cannot be called through a handle. */
+    private static final Object NO_HANDLE = new Object();
+
+    /**
+     * Handles made so far, keyed by a HandleKey. Making them is much
+     * slower than using them, and #set() looks its setter up every time.
+     */
+    private final ConcurrentMap handles = new ConcurrentHashMap();
+
+    /**
+     * @see AbstractChainableUberspector#init()
+     */
+    public void init()
+    {
+        if (inner == null)
+        {
+            UberspectImpl uberspect = new UberspectImpl();
+            uberspect.setLog(log);
+            inner = uberspect;
+        }
+        super.init();
+    }
+
+    /**
+     * @see Uberspect#getMethod(Object, String, Object[], Info)
+     */
+    public VelMethod getMethod(Object obj, String methodName, Object[] args, Info i)
+        throws Exception
+    {
+        VelMethod method = super.getMethod(obj, methodName, args, i);
+        if (method != null && method.getClass() == VelMethodImpl.class)
+        {
+            VelMethodImpl impl = (VelMethodImpl) method;
+            MethodHandle handle = handle(impl.method, METHOD, null);
+            if (handle != null)
+            {
+                return new VelMethodHandleImpl(impl.method, impl.wrapArray, handle);
+            }
+        }
+        return method;
+    }
+
+    /**
+     * @see Uberspect#getPropertyGet(Object, String, Info)
+     */
+    public VelPropertyGet getPropertyGet(Object obj, String identifier, Info i)
+        throws Exception
+    {
+        VelPropertyGet getter = super.getPropertyGet(obj, identifier, i);
+        if (getter != null && getter.getClass() == VelGetterImpl.class)
+        {
+            AbstractExecutor executor = ((VelGetterImpl) getter).getExecutor;
+            MethodHandle handle = null;
+            if (executor.getClass() == PropertyExecutor.class
+                || executor.getClass() == BooleanPropertyExecutor.class)
+            {
+                // getFoo() or isFoo()
+                handle = handle(executor.getMethod(), GETTER, null);
+            }
+            else if (executor.getClass() == GetExecutor.class)
+            {
+                // get("foo")
+                handle = handle(executor.getMethod(), GET, identifier);
+            }
+            if (handle != null)
+            {
+                return new VelGetterHandleImpl(executor.getMethod(), handle);
+            }
+        }
+        return getter;
+    }
+
+    /**
+     * @see Uberspect#getPropertySet(Object, String, Object, Info)
+     */
+    public VelPropertySet getPropertySet(Object obj, String identifier, Object arg, Info i)
+        throws Exception
+    {
+        VelPropertySet setter = super.getPropertySet(obj, identifier, arg, i);
+        if (setter != null && setter.getClass() == VelSetterImpl.class)
+        {
+            SetExecutor executor = ((VelSetterImpl) setter).setExecutor;
+            MethodHandle handle = null;
+            if (executor.getClass() == SetPropertyExecutor.class)
+            {
+                // setFoo(value)
+                handle = handle(executor.getMethod(), SETTER, null);
+            }
+            else if (executor.getClass() == PutExecutor.class)
+            {
+                // put("foo", value)
+                handle = handle(executor.getMethod(), PUT, identifier);
+            }
+            if (handle != null)
+            {
+                return new VelSetterHandleImpl(executor.getMethod(), handle);
+            }
+        }
+        return setter;
+    }
+
+    /**
+     * Returns the handle made for the given use of a method, making it the
+     * first time. The handles for a METHOD take (Object, Object[]), those
+     * for a GETTER or GET (Object), and those for a SETTER or PUT
+     * (Object, Object), and all of them return an Object.
+     *
+     * @return the handle, or null if the method cannot be accessed
+     */
+    private MethodHandle handle(Method method, int use, String identifier)
+    {
+        Object key = new HandleKey(method, use, identifier);
+        Object handle = handles.get(key);
+        if (handle == null)
+        {
+            MethodHandle bound = bind(method);
+            if (bound != null)
+            {
+                if (use == METHOD)
+                {
+                    bound = bound.asSpreader(Object[].class, method.getParameterTypes().length)
+                        .asType(METHOD_TYPE);
+                }
+                else if (use == GETTER)
+                {
+                    bound = bound.asType(GETTER_TYPE);
+                }
+                else if (use == GET)
+                {
+                    bound = MethodHandles.insertArguments(bound.asType(SETTER_TYPE), 1,
+                                                          new Object[] { identifier });
+                }
+                else if (use == SETTER)
+                {
+                    bound = bound.asType(SETTER_TYPE);
+                }
+                else
+                {
+                    bound = MethodHandles.insertArguments(
+                        bound.asType(MethodType.methodType(Object.class, Object.class,
+                                                           Object.class, Object.class)),
+                        1, new Object[] { identifier });
+                }
+            }
+            handle = bound != null ? (Object) bound : NO_HANDLE;
+            handles.putIfAbsent(key, handle);
+        }
+        return handle != NO_HANDLE ? (MethodHandle) handle : null;
+    }
+
+    /**
+     * @return a handle taking the object the method is called on as its
+     *         first argument, even for static methods, or null if the
+     *         method cannot be accessed
+     */
+    private MethodHandle bind(Method method)
+    {
+        try
+        {
+            MethodHandle handle = LOOKUP.unreflect(method).asFixedArity();
+            if (Modifier.isStatic(method.getModifiers()))
+            {
+                handle = MethodHandles.dropArguments(handle, 0, new Class[] { Object.class });
+            }
+            return handle;
+        }
+        catch (IllegalAccessException e)
+        {
+            if (log.isDebugEnabled())
+            {
+                log.debug("MethodHandleUberspector : " + method
+                          + " will be called through reflection: " + e.getMessage());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Key of a handle: its Method, what it is made for and the identifier
+     * bound in, if any.
+     */
+    private static final class HandleKey
+    {
+        private final Method method;
+        private final int use;
+        private final String identifier;
+
+        HandleKey(Method method, int use, String identifier)
+        {
+            this.method = method;
+            this.use = use;
+            this.identifier = identifier;
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof HandleKey))
+            {
+                return false;
+            }
+            HandleKey other = (HandleKey) o;
+            return use == other.use && method.equals(other.method)
+                && (identifier == null ? other.identifier == null
+                                       : identifier.equals(other.identifier));
+        }
+
+        public int hashCode()
+        {
+            int h = method.hashCode() * 31 + use;
+            return identifier == null ? h : h * 31 + identifier.hashCode();
+        }
+    }
+
+    /**
+     * Reports a failure the way <code>Method.invoke()</code> does.
+     */
+    private static InvocationTargetException wrap(Throwable t)
+    {
+        return new InvocationTargetException(t);
+    }
+
+    /**
+     * VelMethod calling its method through a handle, after the array
+     * wrapping and varargs handling of {@link VelMethodImpl}.
+     */
+    public static class VelMethodHandleImpl extends VelMethodImpl
+    {
+        private final MethodHandle handle;
+
+        /**
+         * @param method
+         * @param wrapArray
+         * @param handle of type (Object, Object[])Object
+         */
+        public VelMethodHandleImpl(Method method, boolean wrapArray, MethodHandle handle)
+        {
+            super(method, wrapArray);
+            this.handle = handle;
+        }
+
+        /**
+         * @see VelMethodImpl#doInvoke(Object, Object[])
+         */
+        protected Object doInvoke(Object o, Object[] actual) throws Exception
+        {
+            try
+            {
+                return (Object) handle.invokeExact(o, actual);
+            }
+            catch (Throwable t)
+            {
+                throw wrap(t);
+            }
+        }
+    }
+
+    /**
+     * VelPropertyGet calling its getter through a handle.
+     */
+    public static class VelGetterHandleImpl implements VelPropertyGet
+    {
+        private final Method method;
+
+        private final MethodHandle handle;
+
+        /**
+         * @param method
+         * @param handle of type (Object)Object
+         */
+        public VelGetterHandleImpl(Method method, MethodHandle handle)
+        {
+            this.method = method;
+            this.handle = handle;
+        }
+
+        /**
+         * @see VelPropertyGet#invoke(Object)
+         */
+        public Object invoke(Object o) throws Exception
+        {
+            try
+            {
+                return (Object) handle.invokeExact(o);
+            }
+            catch (Throwable t)
+            {
+                throw wrap(t);
+            }
+        }
+
+        /**
+         * @see VelPropertyGet#isCacheable()
+         */
+        public boolean isCacheable()
+        {
+            return true;
+        }
+
+        /**
+         * @see VelPropertyGet#getMethodName()
+         */
+        public String getMethodName()
+        {
+            return method.getName();
+        }
+    }
+
+    /**
+     * VelPropertySet calling its setter through a handle.
+     */
+    public static class VelSetterHandleImpl implements VelPropertySet
+    {
+        private final Method method;
+
+        private final MethodHandle handle;
+
+        /**
+         * @param method
+         * @param handle of type (Object, Object)Object
+         */
+        public VelSetterHandleImpl(Method method, MethodHandle handle)
+        {
+            this.method = method;
+            this.handle = handle;
+        }
+
+        /**
+         * @see VelPropertySet#invoke(Object, Object)
+         */
+        public Object invoke(Object o, Object value) throws Exception
+        {
+            try
+            {
+                return (Object) handle.invokeExact(o, value);
+            }
+            catch (Throwable t)
+            {
+                throw wrap(t);
+            }
+        }
+
+        /**
+         * @see VelPropertySet#isCacheable()
+         */
+        public boolean isCacheable()
+        {
+            return true;
+        }
+
+        /**
+         * @see VelPropertySet#getMethodName()
+         */
+        public String getMethodName()
+        {
+            return method.getName();
+        }
+    }
+}
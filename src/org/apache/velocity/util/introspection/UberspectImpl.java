@@ -561,7 +561,7 @@ public class UberspectImpl implements Uberspect, UberspectLoggable
      */
     public static class VelSetterImpl implements VelPropertySet
     {
-        private final SetExecutor setExecutor;
+        final SetExecutor setExecutor;
 
         /**
          * @param setExecutor
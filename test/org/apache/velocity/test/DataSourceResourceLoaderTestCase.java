@@ -0,0 +1,252 @@
+package org.apache.velocity.test;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import junit.framework.TestCase;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.log.NullLogChute;
+import org.apache.velocity.runtime.resource.loader.DataSourceResourceLoader;
+
+/**
+ * Runs the DataSourceResourceLoader against an in-memory database behind
+ * a stub DataSource, which records the statements it is asked to prepare.
+ */
+public class DataSourceResourceLoaderTestCase extends TestCase
+{
+    private static final Timestamp FIRST = Timestamp.valueOf("2020-01-01 00:00:00");
+    private static final Timestamp SECOND = Timestamp.valueOf("2021-01-01 00:00:00");
+
+    private Connection connection;
+
+    /** Statements prepared through the stub DataSource. */
+    private final List statements = new ArrayList();
+
+    private VelocityEngine engine;
+
+    public DataSourceResourceLoaderTestCase(String name)
+    {
+        super(name);
+    }
+
+    public void setUp() throws Exception
+    {
+        Class.forName("org.hsqldb.jdbcDriver");
+        connection = DriverManager.getConnection("jdbc:hsqldb:.", "sa", "");
+        execute("CREATE TABLE velocity_template (id VARCHAR(40), def VARCHAR(200), ts TIMESTAMP)");
+        insert("a.vm", "a $foo", FIRST);
+        insert("b.vm", "b $foo", SECOND);
+    }
+
+    public void tearDown() throws Exception
+    {
+        if (engine != null)
+        {
+            engine.shutdown();
+        }
+        execute("DROP TABLE velocity_template");
+        connection.close();
+    }
+
+    public void testPrefetchedTemplateKeepsItsTimestamp() throws Exception
+    {
+        startEngine(true, false, 60);
+
+        Template template = engine.getTemplate("a.vm");
+        assertEquals(FIRST.getTime(), template.getLastModified());
+        assertEquals("only the prefetch queries", 1, statements.size());
+    }
+
+    public void testTimestampGoesWithTheTemplateAskedFor() throws Exception
+    {
+        DataSourceResourceLoader loader = startEngine(true, false, 60);
+        loader.getResourceStream("a.vm").close();
+
+        Template other = new Template();
+        other.setName("b.vm");
+        assertEquals(SECOND.getTime(), loader.getLastModified(other));
+
+        Template served = new Template();
+        served.setName("a.vm");
+        statements.clear();
+        assertEquals(FIRST.getTime(), loader.getLastModified(served));
+        assertEquals(0, statements.size());
+
+        // once told, the prefetched timestamp is not used again
+        assertEquals(FIRST.getTime(), loader.getLastModified(served));
+        assertEquals(1, statements.size());
+    }
+
+    public void testFailedParseLeavesNoTimestampBehind() throws Exception
+    {
+        update("a.vm", "#if(", FIRST);
+        startEngine(true, false, 60);
+        try
+        {
+            engine.getTemplate("a.vm");
+            fail("a.vm does not parse");
+        }
+        catch (ParseErrorException e)
+        {
+            // expected
+        }
+
+        update("a.vm", "a fixed", SECOND);
+        assertEquals(SECOND.getTime(), engine.getTemplate("a.vm").getLastModified());
+    }
+
+    public void testBatchCheckQueriesOncePerInterval() throws Exception
+    {
+        DataSourceResourceLoader loader = startEngine(false, true, 60);
+        Template a = engine.getTemplate("a.vm");
+        Template b = engine.getTemplate("b.vm");
+
+        statements.clear();
+        assertFalse(loader.isSourceModified(a));
+        assertFalse(loader.isSourceModified(b));
+        assertEquals(1, statements.size());
+    }
+
+    private DataSourceResourceLoader startEngine(boolean prefetch, boolean batchCheck, int interval)
+    {
+        DataSourceResourceLoader loader = new DataSourceResourceLoader();
+        loader.setDataSource(stubDataSource());
+
+        engine = new VelocityEngine();
+        engine.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS, NullLogChute.class.getName());
+        engine.setProperty(RuntimeConstants.RESOURCE_LOADER, "ds");
+        engine.setProperty("ds.resource.loader.instance", loader);
+        engine.setProperty("ds.resource.loader.resource.table", "velocity_template");
+        engine.setProperty("ds.resource.loader.resource.keycolumn", "id");
+        engine.setProperty("ds.resource.loader.resource.templatecolumn", "def");
+        engine.setProperty("ds.resource.loader.resource.timestampcolumn", "ts");
+        engine.setProperty("ds.resource.loader.resource.prefetch", String.valueOf(prefetch));
+        engine.setProperty("ds.resource.loader.resource.batchcheck", String.valueOf(batchCheck));
+        engine.setProperty("ds.resource.loader.cache", "true");
+        engine.setProperty("ds.resource.loader.modificationCheckInterval", String.valueOf(interval));
+        engine.setProperty(RuntimeConstants.VM_LIBRARY, "");
+        engine.init();
+        statements.clear();
+        return loader;
+    }
+
+    /**
+     * A DataSource handing out the test connection, which it keeps open
+     * when the loader closes it.
+     */
+    private DataSource stubDataSource()
+    {
+        final InvocationHandler connectionHandler = new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                if (method.getName().equals("close"))
+                {
+                    return null;
+                }
+                if (method.getName().equals("prepareStatement"))
+                {
+                    statements.add(args[0]);
+                }
+                try
+                {
+                    return method.invoke(connection, args);
+                }
+                catch (InvocationTargetException e)
+                {
+                    throw e.getCause();
+                }
+            }
+        };
+
+        return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class[] { DataSource.class }, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                if (method.getName().equals("getConnection"))
+                {
+                    return Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class[] { Connection.class }, connectionHandler);
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private void execute(String sql) throws Exception
+    {
+        Statement statement = connection.createStatement();
+        try
+        {
+            statement.execute(sql);
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+
+    private void insert(String name, String body, Timestamp ts) throws Exception
+    {
+        PreparedStatement ps = connection.prepareStatement(
+            "INSERT INTO velocity_template (def, ts, id) VALUES (?, ?, ?)");
+        write(ps, name, body, ts);
+    }
+
+    private void update(String name, String body, Timestamp ts) throws Exception
+    {
+        PreparedStatement ps = connection.prepareStatement(
+            "UPDATE velocity_template SET def = ?, ts = ? WHERE id = ?");
+        write(ps, name, body, ts);
+    }
+
+    private void write(PreparedStatement ps, String name, String body, Timestamp ts) throws Exception
+    {
+        try
+        {
+            ps.setString(1, body);
+            ps.setTimestamp(2, ts);
+            ps.setString(3, name);
+            ps.executeUpdate();
+        }
+        finally
+        {
+            ps.close();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package org.apache.velocity.test;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.log.NullLogChute;
+import org.apache.velocity.util.introspection.MethodHandleUberspector;
+import org.apache.velocity.util.introspection.UberspectImpl;
+
+/**
+ * Compares the merge times of a template made of property reads, method
+ * calls and #set()s of bean properties, rendered once with the default
+ * reflection based {@link UberspectImpl} and once with the
+ * {@link MethodHandleUberspector} wrapped around it. Run it with Velocity
+ * and its dependencies on the class path:
+ * <pre>
+ * java org.apache.velocity.test.MethodHandleUberspectorBenchmark [merges [rounds]]
+ * </pre>
+ * Each round merges the template <code>merges</code> times (20000 by
+ * default) with each uberspector, alternately; the best of the
+ * <code>rounds</code> (10 by default) is reported, after the JIT has had
+ * the earlier ones to warm up.
+ */
+public class MethodHandleUberspectorBenchmark
+{
+    private static final String REFLECTION = UberspectImpl.class.getName();
+
+    private static final String METHOD_HANDLES =
+        REFLECTION + "," + MethodHandleUberspector.class.getName();
+
+    /**
+     * The bean the template works on.
+     */
+    public static class Bean
+    {
+        private int count = 0;
+        private String name = "bean";
+
+        public int getCount()
+        {
+            return count;
+        }
+
+        public void setCount(int count)
+        {
+            this.count = count;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public void setName(String name)
+        {
+            this.name = name;
+        }
+
+        public boolean isEnabled()
+        {
+            return true;
+        }
+
+        public int add(int a, int b)
+        {
+            return a + b;
+        }
+
+        public String concat(String a, String b)
+        {
+            return a + b;
+        }
+    }
+
+    private final Template template;
+
+    private final VelocityContext context = new VelocityContext();
+
+    /**
+     * @param uberspect value of runtime.introspector.uberspect
+     * @param source the template
+     * @throws Exception
+     */
+    public MethodHandleUberspectorBenchmark(String uberspect, String source)
+        throws Exception
+    {
+        RuntimeInstance ri = new RuntimeInstance();
+        ri.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS, NullLogChute.class.getName());
+        ri.setProperty(RuntimeConstants.UBERSPECT_CLASSNAME, uberspect);
+        ri.init();
+
+        template = new Template();
+        template.setRuntimeServices(ri);
+        template.setName("benchmark");
+        template.setData(ri.parse(new StringReader(source), "benchmark"));
+        template.initDocument();
+
+        context.put("bean", new Bean());
+    }
+
+    /**
+     * Merges the template the given number of times.
+     *
+     * @param merges
+     * @return the average time of a merge, in nanoseconds
+     */
+    public long run(int merges)
+    {
+        long start = System.nanoTime();
+        for (int i = 0; i < merges; i++)
+        {
+            template.merge(context, new StringWriter(1024));
+        }
+        return (System.nanoTime() - start) / merges;
+    }
+
+    /**
+     * @return the output of a single merge
+     */
+    public String render()
+    {
+        StringWriter writer = new StringWriter();
+        template.merge(context, writer);
+        return writer.toString();
+    }
+
+    /**
+     * @param args number of merges per round, and number of rounds
+     * @throws Exception
+     */
+    public static void main(String[] args)
+        throws Exception
+    {
+        int merges = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        StringBuffer source = new StringBuffer();
+        for (int i = 0; i < 20; i++)
+        {
+            source.append("$bean.name $bean.count $bean.enabled $bean.add(").append(i).append(", 2) ")
+                .append("$bean.concat($bean.name, 'x')\n")
+                .append("#set($bean.count = ").append(i).append(")")
+                .append("#set($bean.name = 'bean").append(i).append("')\n");
+        }
+
+        MethodHandleUberspectorBenchmark reflection =
+            new MethodHandleUberspectorBenchmark(REFLECTION, source.toString());
+        MethodHandleUberspectorBenchmark handles =
+            new MethodHandleUberspectorBenchmark(METHOD_HANDLES, source.toString());
+
+        String output = reflection.render();
+        if (output.indexOf('$') >= 0)
+        {
+            System.err.println("The template does not render all its references.");
+            System.exit(1);
+        }
+        if (!output.equals(handles.render()))
+        {
+            System.err.println("The uberspectors render the template differently.");
+            System.exit(1);
+        }
+
+        long bestReflection = Long.MAX_VALUE;
+        long bestHandles = Long.MAX_VALUE;
+        for (int i = 0; i < rounds; i++)
+        {
+            bestReflection = Math.min(bestReflection, reflection.run(merges));
+            bestHandles = Math.min(bestHandles, handles.run(merges));
+        }
+
+        System.out.println("reflection     : " + bestReflection + " ns/merge");
+        System.out.println("method handles : " + bestHandles + " ns/merge");
+        System.out.println("ratio          : " +
+                           Math.round(100.0 * bestHandles / bestReflection) + "%");
+    }
+}
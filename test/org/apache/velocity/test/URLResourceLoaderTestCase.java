@@ -0,0 +1,212 @@
+package org.apache.velocity.test;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.    
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.log.NullLogChute;
+import org.apache.velocity.runtime.resource.loader.URLResourceLoader;
+
+/**
+ * Runs the URLResourceLoader against a local stand-in HTTP server which
+ * serves versioned templates with an ETag, and checks what it is asked.
+ */
+public class URLResourceLoaderTestCase extends TestCase
+{
+    private HttpServer server;
+
+    /** Requests received, as "METHOD /path conditional? status body?". */
+    private final List requests = new ArrayList();
+
+    private volatile int version = 1;
+
+    private VelocityEngine engine;
+
+    public URLResourceLoaderTestCase(String name)
+    {
+        super(name);
+    }
+
+    public void setUp() throws Exception
+    {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                serve(exchange);
+            }
+        });
+        server.start();
+
+        engine = new VelocityEngine();
+        engine.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS, NullLogChute.class.getName());
+        engine.setProperty(RuntimeConstants.RESOURCE_LOADER, "url");
+        engine.setProperty("url.resource.loader.class", URLResourceLoader.class.getName());
+        engine.setProperty("url.resource.loader.root",
+                           "http://localhost:" + server.getAddress().getPort() + "/");
+        engine.setProperty("url.resource.loader.cache", "true");
+        engine.setProperty("url.resource.loader.modificationCheckInterval", "1");
+        engine.init();
+    }
+
+    public void tearDown()
+    {
+        engine.shutdown();
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException
+    {
+        String path = exchange.getRequestURI().getPath();
+        String etag = "\"v" + version + "\"";
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        boolean head = "HEAD".equals(exchange.getRequestMethod());
+
+        int status;
+        byte[] body = null;
+        if (!"/hello.vm".equals(path))
+        {
+            status = 404;
+        }
+        else if (etag.equals(ifNoneMatch))
+        {
+            status = 304;
+        }
+        else
+        {
+            status = 200;
+            body = ("hello v" + version).getBytes("UTF-8");
+        }
+
+        synchronized (requests)
+        {
+            requests.add(exchange.getRequestMethod() + " " + path
+                         + (ifNoneMatch != null ? " conditional " : " ") + status
+                         + (body != null && !head ? " body" : ""));
+        }
+
+        if (status != 404)
+        {
+            exchange.getResponseHeaders().set("ETag", etag);
+        }
+        if (body == null || head)
+        {
+            exchange.sendResponseHeaders(status, -1);
+        }
+        else
+        {
+            exchange.sendResponseHeaders(status, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+        exchange.close();
+    }
+
+    private String render() throws Exception
+    {
+        Template template = engine.getTemplate("hello.vm");
+        StringWriter writer = new StringWriter();
+        template.merge(new VelocityContext(), writer);
+        return writer.toString();
+    }
+
+    private List takeRequests()
+    {
+        synchronized (requests)
+        {
+            List taken = new ArrayList(requests);
+            requests.clear();
+            return taken;
+        }
+    }
+
+    private static int bodies(List requests)
+    {
+        int count = 0;
+        for (int i = 0; i < requests.size(); i++)
+        {
+            if (((String) requests.get(i)).endsWith(" body"))
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void testUnchangedTemplateCostsNotModified() throws Exception
+    {
+        assertEquals("hello v1", render());
+        takeRequests();
+
+        Thread.sleep(1100);
+        assertEquals("hello v1", render());
+
+        List checks = takeRequests();
+        assertFalse("no check made: " + checks, checks.isEmpty());
+        assertEquals("bodies transferred: " + checks, 0, bodies(checks));
+    }
+
+    public void testChangedTemplateIsDownloadedOnce() throws Exception
+    {
+        assertEquals("hello v1", render());
+        takeRequests();
+
+        version = 2;
+        Thread.sleep(1100);
+        assertEquals("hello v2", render());
+
+        List reload = takeRequests();
+        assertEquals("bodies transferred: " + reload, 1, bodies(reload));
+        for (int i = 0; i < reload.size(); i++)
+        {
+            assertTrue("unconditional request: " + reload,
+                       ((String) reload.get(i)).indexOf(" conditional ") > 0);
+        }
+    }
+
+    public void testResourceExistsSendsHead() throws Exception
+    {
+        takeRequests();
+        assertTrue(engine.resourceExists("hello.vm"));
+        assertFalse(engine.resourceExists("missing.vm"));
+
+        List probes = takeRequests();
+        assertEquals(2, probes.size());
+        assertEquals("HEAD /hello.vm 200", probes.get(0));
+        assertEquals("HEAD /missing.vm 404", probes.get(1));
+    }
+}